@@ -2,20 +2,24 @@ package cn.ningmo.geminicraftchat;
 
 import org.bukkit.plugin.java.JavaPlugin;
 import cn.ningmo.geminicraftchat.config.ConfigManager;
+import cn.ningmo.geminicraftchat.config.ConfigSnapshot;
 import cn.ningmo.geminicraftchat.commands.MainCommand;
 import cn.ningmo.geminicraftchat.commands.AdminCommand;
 import cn.ningmo.geminicraftchat.listeners.ChatListener;
+import cn.ningmo.geminicraftchat.listeners.PlayerListener;
 import cn.ningmo.geminicraftchat.chat.ChatManager;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class GeminiCraftChat extends JavaPlugin {
     private static GeminiCraftChat instance;
     private ConfigManager configManager;
-    private ChatManager chatManager;
+    // 重载时替换，异步线程中也会读取
+    private volatile ChatManager chatManager;
     private Logger pluginLogger;
 
     @Override
@@ -42,6 +46,7 @@ public class GeminiCraftChat extends JavaPlugin {
         // 初始化聊天管理器
         try {
             this.chatManager = new ChatManager(this);
+            this.chatManager.startCleanupTask();
             info("聊天管理器初始化成功");
         } catch (Exception e) {
             error("聊天管理器初始化失败", e);
@@ -61,6 +66,7 @@ public class GeminiCraftChat extends JavaPlugin {
         // 注册监听器
         try {
             getServer().getPluginManager().registerEvents(new ChatListener(this), this);
+            getServer().getPluginManager().registerEvents(new PlayerListener(this), this);
             info("事件监听器注册成功");
         } catch (Exception e) {
             error("事件监听器注册失败", e);
@@ -77,11 +83,12 @@ public class GeminiCraftChat extends JavaPlugin {
     public void onDisable() {
         if (chatManager != null) {
             try {
-                chatManager.clearAllHistory();
-                info("已清理所有聊天历史记录");
+                chatManager.saveAllHistory();
+                info("已保存所有聊天历史记录");
             } catch (Exception e) {
-                error("清理聊天历史记录时发生错误", e);
+                error("保存聊天历史记录时发生错误", e);
             }
+            chatManager.shutdown(true);
         }
         
         info("GeminiCraftChat 插件已关闭!");
@@ -181,7 +188,7 @@ public class GeminiCraftChat extends JavaPlugin {
         
         // 输出触发词信息
         info("默认触发词: " + configManager.getDefaultTrigger());
-        List<String> triggers = configManager.getTriggerWords();
+        Set<String> triggers = configManager.getTriggerWords();
         if (!triggers.isEmpty()) {
             info("其他触发词: " + String.join(", ", triggers));
         }
@@ -307,15 +314,18 @@ public class GeminiCraftChat extends JavaPlugin {
             configManager.loadConfig();
             getLogger().info("配置文件重载成功");
             
-            // 重新初始化聊天管理器
-            if (chatManager != null) {
+            // 重新初始化聊天管理器，先替换再关闭旧的，旧的请求返回后交给新的聊天管理器记录
+            ChatManager previous = chatManager;
+            if (previous != null) {
                 // 保存所有历史记录（可选）
-                chatManager.saveAllHistory();
-                // 停止清理任务
-                chatManager.stopCleanupTask();
+                previous.saveAllHistory();
             }
             
             chatManager = new ChatManager(this);
+            if (previous != null) {
+                // 停止清理任务，旧的请求处理完后关闭线程池和连接池
+                previous.shutdown(false);
+            }
             chatManager.startCleanupTask();
             getLogger().info("聊天管理器重新初始化成功");
             
@@ -330,6 +340,7 @@ public class GeminiCraftChat extends JavaPlugin {
     }
 
     public boolean isDebugEnabled() {
-        return configManager.getConfig().getBoolean("debug", false);
+        ConfigSnapshot snapshot = configManager != null ? configManager.getSnapshot() : null;
+        return snapshot != null && snapshot.isDebug();
     }
 } 
\ No newline at end of file
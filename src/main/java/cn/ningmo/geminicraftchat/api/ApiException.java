@@ -0,0 +1,89 @@
+package cn.ningmo.geminicraftchat.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * 上游返回非 200 状态码时抛出的异常，携带状态码和 Retry-After 提示
+ */
+public class ApiException extends IOException {
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public ApiException(int statusCode, String message, long retryAfterMillis) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * 上游要求的等待时间(毫秒)，没有 Retry-After 头时返回 -1
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * 限流(429)、请求超时(408)和服务端错误(5xx)可以重试，其余 4xx 重试也不会成功
+     */
+    public boolean isRetryable() {
+        return statusCode == 429 || statusCode == 408 || statusCode >= 500;
+    }
+
+    /**
+     * 判断一次失败是否值得重试。网络错误和超时可以重试，
+     * 配置错误等非 IO 异常以及不可重试的状态码不重试
+     */
+    public static boolean isRetryable(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof ApiException) {
+                return ((ApiException) cause).isRetryable();
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * 返回失败原因中携带的 Retry-After 等待时间，没有时返回 -1
+     */
+    public static long getRetryAfterMillis(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof ApiException) {
+                return ((ApiException) cause).getRetryAfterMillis();
+            }
+            cause = cause.getCause();
+        }
+        return -1;
+    }
+
+    /**
+     * 解析 Retry-After 头，支持秒数和 HTTP 日期两种格式
+     */
+    static long parseRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package cn.ningmo.geminicraftchat.api;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 插件自有的有界线程池，所有阻塞的上游请求都在这里执行，
+ * 不占用 ForkJoinPool 公共池。队列满时直接拒绝，由调用方提示玩家稍后再试。
+ */
+public class ApiExecutor {
+    private final ThreadPoolExecutor executor;
+    // 延迟任务（如对冲请求）使用的计时线程，只负责提交任务，不执行阻塞调用
+    private final ScheduledExecutorService timer;
+    private final int queueSize;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public ApiExecutor(int threads, int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+        int poolSize = Math.max(1, threads);
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "GeminiCraftChat-API-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(this.queueSize), threadFactory, (runnable, pool) -> {
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("请求队列已满");
+            });
+        executor.allowCoreThreadTimeOut(true);
+
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "GeminiCraftChat-Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        // 关闭后仍执行已排队的延迟任务，等待中的重试、配额等待和超时都会有结果
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(true);
+        this.timer = scheduler;
+    }
+
+    /**
+     * 延迟 delayMillis 毫秒后在计时线程上执行 task，task 应当很快返回。
+     * 关闭后抛出 RejectedExecutionException
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 提交任务，线程池饱和时返回以 RejectedExecutionException 失败的 Future
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * 不再接受新任务，等待已提交的请求完成，超时后中断剩余任务。
+     * 计时线程在请求结束后才关闭，期间请求失败安排的重试仍能调度；已排队的延迟任务在关闭后照常执行
+     */
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.shutdown();
+        }
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public String getStats() {
+        return String.format("活跃 %d / 线程 %d, 排队 %d / %d, 已完成 %d, 已拒绝 %d",
+            getActiveCount(), executor.getMaximumPoolSize(), getQueuedCount(), queueSize,
+            executor.getCompletedTaskCount(), getRejectedCount());
+    }
+
+    public static boolean isRejection(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof RejectedExecutionException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,214 @@
+package cn.ningmo.geminicraftchat.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 单个API节点的无锁熔断器。
+ * 关闭状态下按时间分桶的滑动窗口统计失败率，超过阈值时打开；
+ * 打开一段时间后进入半开状态，只放行少量探测请求，探测全部成功才关闭，任一失败则重新打开
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED("关闭"),
+        OPEN("打开"),
+        HALF_OPEN("半开");
+
+        private final String displayName;
+
+        State(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    // 状态快照，整体替换以保证状态、时间和探测计数一致
+    private static final class Snapshot {
+        final State state;
+        final long since;
+        final int probes;
+        final int probeSuccesses;
+
+        Snapshot(State state, long since, int probes, int probeSuccesses) {
+            this.state = state;
+            this.since = since;
+            this.probes = probes;
+            this.probeSuccesses = probeSuccesses;
+        }
+    }
+
+    private final long bucketMillis;
+    private final int minRequests;
+    private final double failureRate;
+    private final long openDuration;
+    private final int maxProbes;
+    // 每个桶的时间编号和计数，计数高 32 位为请求数，低 32 位为失败数
+    private final AtomicLongArray bucketEpochs;
+    private final AtomicLongArray bucketCounts;
+    private final AtomicReference<Snapshot> snapshot;
+
+    public CircuitBreaker(long windowMillis, int buckets, int minRequests, double failureRate,
+                          long openDuration, int maxProbes) {
+        int bucketCount = Math.max(1, buckets);
+        this.bucketMillis = Math.max(1, windowMillis / bucketCount);
+        this.minRequests = Math.max(1, minRequests);
+        this.failureRate = failureRate;
+        this.openDuration = openDuration;
+        this.maxProbes = Math.max(1, maxProbes);
+        this.bucketEpochs = new AtomicLongArray(bucketCount);
+        this.bucketCounts = new AtomicLongArray(bucketCount);
+        this.snapshot = new AtomicReference<>(new Snapshot(State.CLOSED, System.currentTimeMillis(), 0, 0));
+    }
+
+    /**
+     * 节点当前能否接受请求，不占用探测名额，用于挑选节点
+     */
+    public boolean isAvailable() {
+        Snapshot current = snapshot.get();
+        long now = System.currentTimeMillis();
+        switch (current.state) {
+            case OPEN:
+                return now - current.since >= openDuration;
+            case HALF_OPEN:
+                return current.probes < maxProbes || now - current.since >= openDuration;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 申请发送一次请求。半开状态下占用一个探测名额，名额用完时返回 false。
+     * 探测请求迟迟没有结果（例如被取消）时，半开超过 openDuration 后重新发放名额
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            long now = System.currentTimeMillis();
+            Snapshot next;
+            switch (current.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now - current.since < openDuration) {
+                        return false;
+                    }
+                    next = new Snapshot(State.HALF_OPEN, now, 1, 0);
+                    break;
+                default:
+                    if (current.probes < maxProbes) {
+                        next = new Snapshot(State.HALF_OPEN, current.since, current.probes + 1, current.probeSuccesses);
+                    } else if (now - current.since >= openDuration) {
+                        next = new Snapshot(State.HALF_OPEN, now, 1, 0);
+                    } else {
+                        return false;
+                    }
+                    break;
+            }
+            if (snapshot.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 记录一次成功，返回熔断器是否因此关闭
+     */
+    public boolean onSuccess() {
+        record(false);
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.state != State.HALF_OPEN) {
+                return false;
+            }
+            int successes = current.probeSuccesses + 1;
+            Snapshot next = successes >= maxProbes
+                ? new Snapshot(State.CLOSED, System.currentTimeMillis(), 0, 0)
+                : new Snapshot(State.HALF_OPEN, current.since, current.probes, successes);
+            if (snapshot.compareAndSet(current, next)) {
+                if (next.state == State.CLOSED) {
+                    resetWindow();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 记录一次失败，返回熔断器是否因此打开
+     */
+    public boolean onFailure() {
+        record(true);
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.state == State.OPEN) {
+                return false;
+            }
+            if (current.state == State.CLOSED && !shouldTrip()) {
+                return false;
+            }
+            if (snapshot.compareAndSet(current, new Snapshot(State.OPEN, System.currentTimeMillis(), 0, 0))) {
+                return true;
+            }
+        }
+    }
+
+    public State getState() {
+        return snapshot.get().state;
+    }
+
+    public String getStats() {
+        Snapshot current = snapshot.get();
+        long[] counts = windowCounts();
+        String stats = String.format("熔断器 %s, 窗口内失败 %d / %d", current.state.getDisplayName(), counts[1], counts[0]);
+        if (current.state == State.OPEN) {
+            long remaining = Math.max(0, openDuration - (System.currentTimeMillis() - current.since));
+            stats += String.format(", %d 秒后半开", remaining / 1000);
+        } else if (current.state == State.HALF_OPEN) {
+            stats += String.format(", 探测 %d / %d, 成功 %d", current.probes, maxProbes, current.probeSuccesses);
+        }
+        return stats;
+    }
+
+    private boolean shouldTrip() {
+        long[] counts = windowCounts();
+        return counts[0] >= minRequests && counts[1] >= counts[0] * failureRate;
+    }
+
+    private void record(boolean failure) {
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        int index = (int) (epoch % bucketEpochs.length());
+        long bucketEpoch = bucketEpochs.get(index);
+        // 桶已过期时由第一个写入的线程清零，并发清零时少计几次可以接受
+        if (bucketEpoch != epoch && bucketEpochs.compareAndSet(index, bucketEpoch, epoch)) {
+            bucketCounts.set(index, 0);
+        }
+        bucketCounts.addAndGet(index, failure ? (1L << 32) | 1L : 1L << 32);
+    }
+
+    /**
+     * 返回窗口内的 {请求数, 失败数}
+     */
+    private long[] windowCounts() {
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        long total = 0;
+        long failures = 0;
+        for (int i = 0; i < bucketEpochs.length(); i++) {
+            if (epoch - bucketEpochs.get(i) < bucketEpochs.length()) {
+                long counts = bucketCounts.get(i);
+                total += counts >>> 32;
+                failures += counts & 0xFFFFFFFFL;
+            }
+        }
+        return new long[]{total, failures};
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < bucketCounts.length(); i++) {
+            bucketCounts.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package cn.ningmo.geminicraftchat.api;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个API节点的自适应并发上限（AIMD）。
+ * 每次成功把上限加 1/上限，相当于每轮请求加 1；上游限流、过载或超时时按比例收缩。
+ * 超过上限的请求短暂排队，等待超时后以 RejectedExecutionException 失败
+ */
+public class ConcurrencyLimiter {
+    private final double minLimit;
+    private final double maxLimit;
+    private final double backoffRatio;
+    private final int maxQueue;
+    private final long maxWait;
+    private final ApiExecutor timer;
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile double limit;
+    private volatile int inFlight;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                              int maxQueue, long maxWait, ApiExecutor timer) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.backoffRatio = backoffRatio;
+        this.maxQueue = Math.max(0, maxQueue);
+        this.maxWait = maxWait;
+        this.timer = timer;
+    }
+
+    /**
+     * 申请一个并发名额，有空余时立即完成，否则排队等待其他请求释放
+     */
+    public CompletableFuture<Void> acquire() {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        boolean queued = false;
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                waiter.complete(null);
+                return waiter;
+            }
+            if (waiters.size() < maxQueue) {
+                waiters.addLast(waiter);
+                queued = true;
+            }
+        }
+        if (!queued) {
+            rejectedCount.incrementAndGet();
+            waiter.completeExceptionally(new RejectedExecutionException("节点并发已满"));
+            return waiter;
+        }
+        Runnable timeout = () -> {
+            if (waiter.completeExceptionally(new RejectedExecutionException("等待节点并发名额超时"))) {
+                rejectedCount.incrementAndGet();
+                synchronized (this) {
+                    waiters.remove(waiter);
+                }
+            }
+        };
+        try {
+            timer.schedule(timeout, maxWait);
+        } catch (RejectedExecutionException e) {
+            // 计时线程已关闭，无法等待，立即按超时处理
+            timeout.run();
+        }
+        return waiter;
+    }
+
+    /**
+     * 请求成功，加性增大上限并释放名额
+     */
+    public void onSuccess() {
+        synchronized (this) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        release();
+    }
+
+    /**
+     * 上游过载，乘性收缩上限并释放名额
+     */
+    public void onOverload() {
+        synchronized (this) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+        }
+        release();
+    }
+
+    /**
+     * 与负载无关的结束（普通错误、取消），只释放名额
+     */
+    public void onIgnore() {
+        release();
+    }
+
+    /**
+     * 还有空余名额时返回 true，用于挑选节点时优先分流到不拥挤的节点
+     */
+    public boolean hasCapacity() {
+        return inFlight < (int) limit;
+    }
+
+    public String getStats() {
+        int queued;
+        synchronized (this) {
+            queued = waiters.size();
+        }
+        return String.format("并发上限 %.1f, 占用 %d, 排队 %d, 已拒绝 %d", limit, inFlight, queued, rejectedCount.get());
+    }
+
+    /**
+     * 限流(429)、服务不可用(503)和超时视为过载信号
+     */
+    public static boolean isOverload(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof ApiException) {
+                int status = ((ApiException) cause).getStatusCode();
+                return status == 429 || status == 503;
+            }
+            if (cause instanceof SocketTimeoutException || cause instanceof ConnectTimeoutException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * 把名额交给下一个仍在等待的请求，上限已收缩或没有等待者时归还名额
+     */
+    private void release() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = inFlight <= (int) limit ? waiters.pollFirst() : null;
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            // 等待者可能刚好超时，此时继续交给下一个
+            if (next.complete(null)) {
+                return;
+            }
+        }
+    }
+}
@@ -2,36 +2,79 @@ package cn.ningmo.geminicraftchat.api;
 
 import cn.ningmo.geminicraftchat.GeminiCraftChat;
 import cn.ningmo.geminicraftchat.config.ConfigManager;
+import cn.ningmo.geminicraftchat.history.TokenEstimator;
+import cn.ningmo.geminicraftchat.history.Turn;
 import cn.ningmo.geminicraftchat.persona.Persona;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonArray;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class GeminiService {
     private final GeminiCraftChat plugin;
     private final ConfigManager configManager;
-    private final Map<String, List<Map<String, String>>> chatHistories;
-    private final Gson gson;
     private final Map<String, Object> config;
     private final String type;
     private final String name;
     private final int weight;
+    // 相对调用成本，生成历史摘要等内部任务优先使用成本最低的节点
+    private final double cost;
+    private final boolean stream;
+    private final HttpTransport transport;
+    private final RequestEncoder encoder;
+    private final ApiExecutor executor;
+    private final LatencyTracker latency = new LatencyTracker(100);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final CircuitBreaker circuitBreaker;
+    private final ConcurrencyLimiter limiter;
+    private final RequestQuota quota;
+    private final long quotaMaxWait;
+    // 回答部分 token 数的移动平均，用于预扣配额
+    private volatile double completionEstimate = 256;
+
+    /**
+     * 一次上游调用，返回的 Future 被取消时中止正在进行的 HTTP 请求
+     */
+    private static class PendingCall {
+        private volatile HttpPost request;
+        private volatile boolean cancelled;
+        // 已开始向上游发送，之前结束的调用归还预扣的配额
+        private volatile boolean started;
+        // 上游报告的总 token 数，未报告时为 -1
+        private volatile long totalTokens = -1;
+
+        void attach(HttpPost request) {
+            this.request = request;
+            if (cancelled) {
+                request.abort();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            HttpPost current = request;
+            if (current != null) {
+                current.abort();
+            }
+        }
+    }
 
     @SuppressWarnings("unchecked")
-    public GeminiService(GeminiCraftChat plugin, Map<?, ?> config, String type) {
+    public GeminiService(GeminiCraftChat plugin, Map<?, ?> config, String type, ApiExecutor executor) {
         this.plugin = plugin;
+        this.executor = executor;
         this.configManager = plugin.getConfigManager();
-        this.chatHistories = new ConcurrentHashMap<>();
-        this.gson = new Gson();
         
         // 安全地转换配置
         this.config = new HashMap<>();
@@ -50,29 +93,176 @@ public class GeminiService {
         // 安全地获取权重
         Object weightObj = config.get("weight");
         this.weight = weightObj instanceof Number ? ((Number) weightObj).intValue() : 1;
+        Object costObj = config.get("cost");
+        this.cost = costObj instanceof Number ? ((Number) costObj).doubleValue() : 1.0;
+
+        // 流式输出只支持 direct 和 openai 类型
+        Object streamObj = config.get("stream");
+        this.stream = streamObj instanceof Boolean && (Boolean) streamObj
+            && ("direct".equalsIgnoreCase(type) || "openai".equalsIgnoreCase(type));
+
+        // 每个节点持有独立的长连接池和代理路由
+        ProxyRoute proxyRoute = ProxyRoute.resolve(this.config, configManager);
+        this.transport = new HttpTransport(this.config, proxyRoute);
+        plugin.debug("API节点 [" + name + "] 代理路由: " + proxyRoute);
+
+        this.circuitBreaker = new CircuitBreaker(
+            plugin.getConfig().getLong("api.circuit_breaker.window", 60000),
+            plugin.getConfig().getInt("api.circuit_breaker.buckets", 10),
+            plugin.getConfig().getInt("api.circuit_breaker.min_requests", 5),
+            plugin.getConfig().getDouble("api.circuit_breaker.failure_rate", 0.5),
+            plugin.getConfig().getLong("api.circuit_breaker.open_duration", 30000),
+            plugin.getConfig().getInt("api.circuit_breaker.half_open_probes", 2));
+
+        this.limiter = plugin.getConfig().getBoolean("api.concurrency.enabled", true)
+            ? new ConcurrencyLimiter(
+                plugin.getConfig().getInt("api.concurrency.initial_limit", 8),
+                plugin.getConfig().getInt("api.concurrency.min_limit", 1),
+                plugin.getConfig().getInt("api.concurrency.max_limit", 32),
+                plugin.getConfig().getDouble("api.concurrency.backoff_ratio", 0.7),
+                plugin.getConfig().getInt("api.concurrency.max_queue", 16),
+                plugin.getConfig().getLong("api.concurrency.max_wait", 2000),
+                executor)
+            : null;
+
+        // 可选的每分钟请求数和 token 数配额
+        int rpm = HttpTransport.getInt(this.config, "rpm", 0);
+        int tpm = HttpTransport.getInt(this.config, "tpm", 0);
+        this.quota = rpm > 0 || tpm > 0 ? new RequestQuota(rpm, tpm) : null;
+        this.quotaMaxWait = plugin.getConfig().getLong("api.quota.max_wait", 3000);
+
+        // 请求体中的常量部分在创建节点时准备好
+        this.encoder = new RequestEncoder(type, this.config, configManager, tracksTokens());
+    }
+
+    public CompletableFuture<String> sendMessage(List<Turn> history, String message, Optional<Persona> persona) {
+        return sendMessage(history, message, persona, null);
+    }
+
+    /**
+     * 发送消息，节点启用流式输出且 segmentConsumer 不为空时，
+     * 每收到一个完整的句子或行就交给 segmentConsumer，返回的 Future 在流结束后完成。
+     * history 由调用方在发送前取出，重试和对冲在计时线程上发起，不能在这里读取可能阻塞的历史日志。
+     * 不会写入历史记录，由调用方把最终采用的回答写入对话历史。
+     * 取消返回的 Future 会中止正在进行的请求
+     */
+    public CompletableFuture<String> sendMessage(List<Turn> history, String message, Optional<Persona> persona,
+                                                 Consumer<String> segmentConsumer) {
+        return send(history, message, persona, segmentConsumer);
     }
 
-    public CompletableFuture<String> sendMessage(String playerId, String message, Optional<Persona> persona) {
-        return CompletableFuture.supplyAsync(() -> {
+    /**
+     * 发送不带历史记录和人设的单次请求，用于插件内部的摘要等任务
+     */
+    public CompletableFuture<String> sendPrompt(String prompt) {
+        return send(Collections.<Turn>emptyList(), prompt, Optional.<Persona>empty(), null);
+    }
+
+    private CompletableFuture<String> send(List<Turn> history, String message, Optional<Persona> persona,
+                                           Consumer<String> segmentConsumer) {
+        Consumer<String> consumer = stream ? segmentConsumer : null;
+        PendingCall call = new PendingCall();
+
+        // 按估算的 token 数预扣配额，配额不足时在短暂等待后再发送
+        int promptTokens = quota != null ? estimatePromptTokens(history, message, persona) : 0;
+        int estimatedTokens = promptTokens + (int) completionEstimate;
+        long quotaWait = quota != null ? quota.reserve(estimatedTokens, quotaMaxWait) : 0;
+        if (quotaWait < 0) {
+            CompletableFuture<String> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RejectedExecutionException("节点配额已用尽"));
+            return rejected;
+        }
+
+        inFlight.incrementAndGet();
+        Supplier<String> task = () -> {
+            if (call.cancelled) {
+                throw new CancellationException();
+            }
+            call.started = true;
+            long start = System.currentTimeMillis();
             try {
+                String response;
                 switch (type.toLowerCase()) {
                     case "direct":
-                        return sendDirectRequest(playerId, message, persona);
+                        response = sendDirectRequest(history, message, persona, consumer, call);
+                        break;
                     case "proxy":
-                        return sendProxyRequest(playerId, message, persona);
+                        response = sendProxyRequest(history, message, persona, call);
+                        break;
                     case "openai":
-                        return sendOpenAIRequest(playerId, message, persona);
+                        response = sendOpenAIRequest(history, message, persona, consumer, call);
+                        break;
                     default:
                         throw new IllegalStateException("未知的API类型: " + type);
                 }
+                latency.record(System.currentTimeMillis() - start);
+                if (quota != null && call.totalTokens >= 0) {
+                    quota.correct(estimatedTokens, call.totalTokens);
+                    completionEstimate = Math.max(16,
+                        completionEstimate + 0.2 * (call.totalTokens - promptTokens - completionEstimate));
+                }
+                return response;
             } catch (Exception e) {
+                if (call.cancelled) {
+                    plugin.debug("请求已取消 [" + name + "]");
+                    throw new CancellationException();
+                }
                 plugin.getLogger().warning("发送消息失败: " + e.getMessage());
                 throw new RuntimeException("AI 响应失败", e);
             }
+        };
+
+        // 先取得节点并发名额再提交到线程池，名额随请求结束归还并调整上限
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<Void> permit = delay(quotaWait)
+            .thenCompose(ignored -> limiter != null ? limiter.acquire() : CompletableFuture.<Void>completedFuture(null));
+        permit.whenComplete((ignored, rejected) -> {
+            if (rejected != null) {
+                releaseQuota(estimatedTokens);
+                future.completeExceptionally(rejected);
+                return;
+            }
+            if (future.isDone()) {
+                // 排队期间已被取消
+                if (limiter != null) {
+                    limiter.onIgnore();
+                }
+                releaseQuota(estimatedTokens);
+                return;
+            }
+            executor.supply(task).whenComplete((response, throwable) -> {
+                releasePermit(throwable);
+                // 线程池拒绝或开始发送前被取消
+                if (throwable != null && !call.started) {
+                    releaseQuota(estimatedTokens);
+                }
+                if (throwable == null) {
+                    future.complete(response);
+                } else {
+                    future.completeExceptionally(throwable);
+                }
+            });
+        });
+        future.whenComplete((response, throwable) -> {
+            inFlight.decrementAndGet();
+            if (future.isCancelled()) {
+                call.cancel();
+            } else if (throwable == null) {
+                if (circuitBreaker.onSuccess()) {
+                    plugin.getLogger().info("API节点已恢复: " + getEndpointInfo());
+                }
+            } else if (!ApiExecutor.isRejection(throwable) && !(throwable.getCause() instanceof CancellationException)) {
+                // 线程池拒绝和主动取消不算节点故障
+                if (circuitBreaker.onFailure()) {
+                    plugin.getLogger().warning("API节点熔断: " + getEndpointInfo() + ", " + circuitBreaker.getStats());
+                }
+            }
         });
+        return future;
     }
 
-    private String sendProxyRequest(String playerId, String message, Optional<Persona> persona) throws IOException {
+    private String sendProxyRequest(List<Turn> history, String message, Optional<Persona> persona,
+                                    PendingCall call) throws IOException {
         // 获取代理配置
         String url = (String) config.get("url");
         String key = (String) config.get("key");
@@ -81,402 +271,357 @@ public class GeminiService {
             throw new IllegalStateException("未配置代理URL");
         }
         
-        JsonObject requestBody = new JsonObject();
-        requestBody.addProperty("message", message);
-        
-        // 添加人设信息
-        if (persona.isPresent()) {
-            requestBody.addProperty("persona", persona.get().getContext());
-        }
-        
-        // 添加历史记录
-        List<Map<String, String>> history = chatHistories.get(playerId);
-        if (history != null && !history.isEmpty()) {
-            JsonArray historyArray = new JsonArray();
-            for (Map<String, String> msg : history) {
-                JsonObject historyMsg = new JsonObject();
-                historyMsg.addProperty("role", msg.get("role"));
-                historyMsg.addProperty("content", msg.get("content"));
-                historyArray.add(historyMsg);
-            }
-            requestBody.add("history", historyArray);
-        }
-
         // 发送请求
         plugin.debug("中转API URL: " + url);
-        plugin.debug("请求体: " + requestBody.toString());
         
-        HttpURLConnection conn = createConnection(new URL(url));
+        HttpPost request = createRequest(url, encoder.encode(history, message, persona, false));
         
         // 设置请求头
-        conn.setRequestProperty("Content-Type", "application/json");
         if (key != null && !key.isEmpty()) {
-            conn.setRequestProperty("Authorization", "Bearer " + key);
+            request.setHeader("Authorization", "Bearer " + key);
             plugin.debug("已设置Authorization头");
         }
 
-        try {
-            // 发送请求体
-            try (OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream(), StandardCharsets.UTF_8)) {
-                writer.write(requestBody.toString());
-                writer.flush();
-            }
-
+        try (CloseableHttpResponse httpResponse = execute(request, call)) {
             // 获取响应
-            int responseCode = conn.getResponseCode();
+            int responseCode = httpResponse.getStatusLine().getStatusCode();
             plugin.debug("API响应代码: " + responseCode);
             
             if (responseCode == 404) {
                 plugin.debug("API端点未找到，请检查URL是否正确");
-                throw new IOException("API端点未找到(404)，请检查中转服务器URL配置");
+                throw new ApiException(404, "API端点未找到(404)，请检查中转服务器URL配置", -1);
             }
 
             if (responseCode != 200) {
-                handleErrorResponse(conn);
+                handleErrorResponse(httpResponse);
             }
 
-            String response = readResponse(conn);
-            plugin.debug("API原始响应: " + response);
-
-            JsonObject jsonResponse = gson.fromJson(response, JsonObject.class);
-            String responseText = jsonResponse.get("response").getAsString();
-
-            // 更新历史记录
-            updateChatHistory(playerId, message, responseText);
-            return responseText;
-        } finally {
-            conn.disconnect();
+            return readResponse(httpResponse, ResponseParser.PROXY_TEXT, null, call);
         }
     }
 
-    private HttpURLConnection createConnection(URL url) throws IOException {
-        HttpURLConnection conn;
-        
-        // 处理代理设置
-        if (configManager.isHttpProxyEnabled()) {
-            String proxyHost = configManager.getHttpProxyHost();
-            int proxyPort = configManager.getHttpProxyPort();
-            String proxyType = configManager.getProxyType();
-            
-            plugin.debug("使用" + proxyType + "代理: " + proxyHost + ":" + proxyPort);
-            
-            // 设置代理
-            if ("SOCKS".equalsIgnoreCase(proxyType)) {
-                System.setProperty("socksProxyHost", proxyHost);
-                System.setProperty("socksProxyPort", String.valueOf(proxyPort));
-            } else {
-                System.setProperty("http.proxyHost", proxyHost);
-                System.setProperty("http.proxyPort", String.valueOf(proxyPort));
-                System.setProperty("https.proxyHost", proxyHost);
-                System.setProperty("https.proxyPort", String.valueOf(proxyPort));
-            }
-        }
-        
-        try {
-            conn = (HttpURLConnection) url.openConnection();
-            
-            // 获取超时设置
-            Map<String, Object> timeoutConfig = new HashMap<>();
-            Object timeoutObj = config.getOrDefault("timeout", new HashMap<>());
-            if (timeoutObj instanceof Map) {
-                ((Map<?, ?>) timeoutObj).forEach((k, v) -> {
-                    if (k != null && v != null) {
-                        timeoutConfig.put(k.toString(), v);
-                    }
-                });
-            }
-            
-            int connectTimeout = ((Number) timeoutConfig.getOrDefault("connect", 30000)).intValue();
-            int readTimeout = ((Number) timeoutConfig.getOrDefault("read", 30000)).intValue();
-            
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setConnectTimeout(connectTimeout);
-            conn.setReadTimeout(readTimeout);
-            conn.setDoOutput(true);
-            
-            return conn;
-        } finally {
-            // 清理代理设置
-            if (configManager.isHttpProxyEnabled()) {
-                System.clearProperty("socksProxyHost");
-                System.clearProperty("socksProxyPort");
-                System.clearProperty("http.proxyHost");
-                System.clearProperty("http.proxyPort");
-                System.clearProperty("https.proxyHost");
-                System.clearProperty("https.proxyPort");
-            }
-        }
+    private HttpPost createRequest(String url, HttpEntity requestBody) {
+        HttpPost request = new HttpPost(url);
+        request.setEntity(requestBody);
+        return request;
+    }
+
+    private CloseableHttpResponse execute(HttpPost request, PendingCall call) throws IOException {
+        // 连接从节点连接池中租用，响应关闭后归还
+        call.attach(request);
+        return transport.execute(request);
     }
 
-    private String sendDirectRequest(String playerId, String message, Optional<Persona> persona) throws IOException {
+    private String sendDirectRequest(List<Turn> history, String message, Optional<Persona> persona,
+                                     Consumer<String> segmentConsumer, PendingCall call) throws IOException {
         // 获取API URL
         String apiUrl = (String) config.getOrDefault("url", 
             "https://generativelanguage.googleapis.com/v1/models/gemini-pro:generateContent");
         String apiKey = (String) config.get("key");
         
-        List<Map<String, String>> history = chatHistories.computeIfAbsent(playerId, k -> new ArrayList<>());
-        
-        // 构建请求体
-        JsonObject requestBody = new JsonObject();
-        JsonArray contents = new JsonArray();
-        
-        // 如果有人设且历史记录为空，添加人设上下文
         if (persona.isPresent() && history.isEmpty()) {
-            JsonObject personaContent = new JsonObject();
-            JsonArray parts = new JsonArray();
-            JsonObject part = new JsonObject();
-            part.addProperty("text", persona.get().getContext());
-            parts.add(part);
-            personaContent.add("parts", parts);
-            personaContent.addProperty("role", "user");
-            contents.add(personaContent);
-            
             plugin.debug("添加人设上下文: " + persona.get().getContext());
         }
 
-        // 添加用户消息
-        JsonObject userContent = new JsonObject();
-        JsonArray parts = new JsonArray();
-        JsonObject part = new JsonObject();
-        part.addProperty("text", message);
-        parts.add(part);
-        userContent.add("parts", parts);
-        userContent.addProperty("role", "user");
-        contents.add(userContent);
-
-        requestBody.add("contents", contents);
+        // 发送请求，流式输出使用 SSE 格式的 streamGenerateContent
+        String url = segmentConsumer != null
+            ? apiUrl.replace(":generateContent", ":streamGenerateContent") + "?alt=sse&key=" + apiKey
+            : apiUrl + "?key=" + apiKey;
+        plugin.debug("发送请求到: " + url.replaceAll("key=.*", "key=***"));
         
-        JsonObject generationConfig = new JsonObject();
-        generationConfig.addProperty("temperature", 0.7);
-        generationConfig.addProperty("topP", 0.95);
-        generationConfig.addProperty("topK", 40);
-        generationConfig.addProperty("maxOutputTokens", 1024);
-        requestBody.add("generationConfig", generationConfig);
-
-        // 发送请求
-        URL url = new URL(apiUrl + "?key=" + apiKey);
-        plugin.debug("发送请求到: " + url.toString().replaceAll("key=.*", "key=***"));
-        plugin.debug("请求体: " + requestBody.toString());
+        HttpPost request = createRequest(url, encoder.encode(history, message, persona, segmentConsumer != null));
         
-        HttpURLConnection conn = createConnection(url);
-        
-        try {
-            // 发送请求体
-            try (OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream(), StandardCharsets.UTF_8)) {
-                writer.write(requestBody.toString());
-                writer.flush();
-            }
-
+        try (CloseableHttpResponse httpResponse = execute(request, call)) {
             // 获取响应
-            int responseCode = conn.getResponseCode();
+            int responseCode = httpResponse.getStatusLine().getStatusCode();
             plugin.debug("API响应代码: " + responseCode);
 
             if (responseCode != 200) {
-                handleErrorResponse(conn);
+                handleErrorResponse(httpResponse);
             }
 
-            String response = readResponse(conn);
-            plugin.debug("API原始响应: " + response);
-
-            JsonObject jsonResponse = gson.fromJson(response, JsonObject.class);
-            String responseText = jsonResponse
-                .getAsJsonArray("candidates")
-                .get(0)
-                .getAsJsonObject()
-                .getAsJsonObject("content")
-                .getAsJsonArray("parts")
-                .get(0)
-                .getAsJsonObject()
-                .get("text")
-                .getAsString();
-
-            // 更新历史记录
-            updateChatHistory(playerId, message, responseText);
-            plugin.debug("更新历史记录成功");
-
-            return responseText;
+            if (segmentConsumer != null) {
+                return readEventStream(httpResponse, ResponseParser.DIRECT_TEXT, ResponseParser.DIRECT_USAGE,
+                    segmentConsumer, call);
+            }
+
+            return readResponse(httpResponse, ResponseParser.DIRECT_TEXT, ResponseParser.DIRECT_USAGE, call);
         } catch (Exception e) {
             plugin.debug("请求失败: " + e.getMessage());
             if (e instanceof IOException) {
                 throw (IOException) e;
             }
             throw new IOException("请求处理失败", e);
-        } finally {
-            // 清理代理设置
-            if (configManager.isHttpProxyEnabled()) {
-                String proxyType = configManager.getProxyType();
-                if ("SOCKS".equalsIgnoreCase(proxyType)) {
-                    System.clearProperty("socksProxyHost");
-                    System.clearProperty("socksProxyPort");
-                } else {
-                    System.clearProperty("http.proxyHost");
-                    System.clearProperty("http.proxyPort");
-                    System.clearProperty("https.proxyHost");
-                    System.clearProperty("https.proxyPort");
-                }
-            }
-            conn.disconnect();
         }
     }
 
-    private String sendOpenAIRequest(String playerId, String message, Optional<Persona> persona) throws IOException {
+    private String sendOpenAIRequest(List<Turn> history, String message, Optional<Persona> persona,
+                                     Consumer<String> segmentConsumer, PendingCall call) throws IOException {
         // 获取OpenAI配置
         String url = (String) config.get("url");
         String key = (String) config.get("key");
-        String model = (String) config.getOrDefault("model", "gpt-3.5-turbo");
-        double temperature = ((Number) config.getOrDefault("temperature", 0.7)).doubleValue();
-        int maxTokens = ((Number) config.getOrDefault("max_tokens", 1024)).intValue();
         
         if (url == null) {
             throw new IllegalStateException("未配置OpenAI URL");
         }
         
-        JsonObject requestBody = new JsonObject();
-        requestBody.addProperty("model", model);
-        
-        // 添加参数配置
-        requestBody.addProperty("temperature", temperature);
-        requestBody.addProperty("max_tokens", maxTokens);
-        requestBody.addProperty("top_p", configManager.getConfig().getDouble("api.openai.top_p", 0.95));
-        requestBody.addProperty("frequency_penalty", configManager.getConfig().getDouble("api.openai.frequency_penalty", 0.0));
-        requestBody.addProperty("presence_penalty", configManager.getConfig().getDouble("api.openai.presence_penalty", 0.0));
-        
-        // 构建消息数组
-        JsonArray messages = new JsonArray();
-        
-        // 添加人设系统消息
-        if (persona.isPresent()) {
-            JsonObject systemMessage = new JsonObject();
-            systemMessage.addProperty("role", "system");
-            systemMessage.addProperty("content", persona.get().getContext());
-            messages.add(systemMessage);
-        }
-        
-        // 添加历史记录
-        List<Map<String, String>> history = chatHistories.get(playerId);
-        if (history != null) {
-            for (Map<String, String> msg : history) {
-                JsonObject historyMessage = new JsonObject();
-                historyMessage.addProperty("role", msg.get("role"));
-                historyMessage.addProperty("content", msg.get("content"));
-                messages.add(historyMessage);
-            }
-        }
-        
-        // 添加当前消息
-        JsonObject userMessage = new JsonObject();
-        userMessage.addProperty("role", "user");
-        userMessage.addProperty("content", message);
-        messages.add(userMessage);
-        
-        requestBody.add("messages", messages);
-        
         // 发送请求
         plugin.debug("发送OpenAI格式请求到: " + url);
-        plugin.debug("请求体: " + requestBody.toString());
         
-        HttpURLConnection conn = createConnection(new URL(url));
+        HttpPost request = createRequest(url,
+            encoder.encode(history, message, persona, segmentConsumer != null));
         if (key != null && !key.isEmpty()) {
-            conn.setRequestProperty("Authorization", "Bearer " + key);
+            request.setHeader("Authorization", "Bearer " + key);
         }
         
-        try {
-            try (OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream(), StandardCharsets.UTF_8)) {
-                writer.write(requestBody.toString());
-                writer.flush();
-            }
-
-            int responseCode = conn.getResponseCode();
+        try (CloseableHttpResponse httpResponse = execute(request, call)) {
+            int responseCode = httpResponse.getStatusLine().getStatusCode();
             plugin.debug("API响应代码: " + responseCode);
 
             if (responseCode != 200) {
-                handleErrorResponse(conn);
+                handleErrorResponse(httpResponse);
             }
 
-            String response = readResponse(conn);
-            plugin.debug("API原始响应: " + response);
+            if (segmentConsumer != null) {
+                return readEventStream(httpResponse, ResponseParser.OPENAI_DELTA, ResponseParser.OPENAI_USAGE,
+                    segmentConsumer, call);
+            }
 
             // 解析OpenAI响应格式
-            JsonObject jsonResponse = gson.fromJson(response, JsonObject.class);
-            String responseText = jsonResponse
-                .getAsJsonArray("choices")
-                .get(0)
-                .getAsJsonObject()
-                .getAsJsonObject("message")
-                .get("content")
-                .getAsString();
-
-            // 更新历史记录
-            updateChatHistory(playerId, message, responseText);
-            plugin.debug("更新历史记录成功");
-
-            return responseText;
-        } finally {
-            conn.disconnect();
+            return readResponse(httpResponse, ResponseParser.OPENAI_TEXT, ResponseParser.OPENAI_USAGE, call);
         }
     }
 
-    private String readResponse(HttpURLConnection conn) throws IOException {
-        StringBuilder response = new StringBuilder();
-        try (Scanner scanner = new Scanner(conn.getInputStream(), StandardCharsets.UTF_8.name())) {
-            while (scanner.hasNextLine()) {
-                response.append(scanner.nextLine());
-            }
+    /**
+     * 从响应流中直接提取回答文本，超过长度上限时截断并中止读取。
+     * 配置了 tpm 时同时读取上游报告的 token 用量
+     */
+    private String readResponse(CloseableHttpResponse httpResponse, Object[] textPath, Object[] usagePath,
+                                PendingCall call) throws IOException {
+        int maxLength = configManager.getMaxResponseLength();
+        ResponseParser.Result result;
+        if (usagePath != null && tracksTokens()) {
+            result = ResponseParser.readTextAndUsage(httpResponse.getEntity().getContent(),
+                textPath, usagePath, configManager.getMaxResponseBody(), maxLength);
+            call.totalTokens = result.totalTokens;
+        } else {
+            result = ResponseParser.readText(httpResponse.getEntity().getContent(), textPath,
+                configManager.getMaxResponseBody(), maxLength);
         }
-        return response.toString();
+        String responseText = result.text;
+        if (result.truncated) {
+            plugin.debug("回答超过长度上限 " + maxLength + "，已截断");
+            responseText = responseText + "...";
+        }
+        plugin.debug("API响应: " + responseText);
+        return responseText;
     }
 
-    private void handleErrorResponse(HttpURLConnection conn) throws IOException {
-        StringBuilder error = new StringBuilder();
-        try (Scanner scanner = new Scanner(conn.getErrorStream(), StandardCharsets.UTF_8.name())) {
-            while (scanner.hasNextLine()) {
-                error.append(scanner.nextLine());
+    /**
+     * 逐行读取 SSE 事件流，把每个事件中的增量文本交给分段器
+     */
+    private String readEventStream(CloseableHttpResponse httpResponse, Object[] deltaPath, Object[] usagePath,
+                                   Consumer<String> segmentConsumer, PendingCall call) throws IOException {
+        boolean readUsage = tracksTokens();
+        long start = System.currentTimeMillis();
+        int maxLength = configManager.getMaxResponseLength();
+        int received = 0;
+        boolean truncated = false;
+        StreamSegmenter segmenter = new StreamSegmenter(segmentConsumer);
+
+        ResponseParser.LimitedReader limitedReader = new ResponseParser.LimitedReader(
+            new InputStreamReader(httpResponse.getEntity().getContent(), StandardCharsets.UTF_8),
+            configManager.getMaxResponseBody());
+        BufferedReader reader = new BufferedReader(limitedReader);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if (data.isEmpty()) {
+                    continue;
+                }
+                if ("[DONE]".equals(data)) {
+                    break;
+                }
+
+                // 用量在最后的事件中给出，Gemini 每个事件都带有累计用量
+                if (readUsage) {
+                    long tokens = ResponseParser.parseTokens(ResponseParser.readEvent(data, usagePath));
+                    if (tokens >= 0) {
+                        call.totalTokens = tokens;
+                    }
+                }
+
+                String delta = ResponseParser.readEvent(data, deltaPath);
+                if (delta == null || delta.isEmpty()) {
+                    continue;
+                }
+                // 回答超过长度上限时截断，不再读取剩余的流
+                if (received + delta.length() > maxLength) {
+                    segmenter.append(delta.substring(0, maxLength - received) + "...");
+                    truncated = true;
+                    break;
+                }
+                received += delta.length();
+
+                int before = segmenter.getSegmentCount();
+                segmenter.append(delta);
+                if (before == 0 && segmenter.getSegmentCount() > 0) {
+                    plugin.debug("首段流式响应耗时: " + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        } finally {
+            // 正常结束时读完剩余内容让连接回到连接池，截断或超限时由关闭响应断开连接
+            if (!truncated && !limitedReader.isExceeded()) {
+                reader.close();
             }
         }
-        String errorMessage = error.toString();
+
+        String responseText = segmenter.finish();
+        plugin.debug("流式响应完成，耗时: " + (System.currentTimeMillis() - start) + "ms, 共 "
+            + segmenter.getSegmentCount() + " 段" + (truncated ? "，已截断" : ""));
+        return responseText;
+    }
+
+    private void handleErrorResponse(CloseableHttpResponse httpResponse) throws IOException {
+        // 错误信息只用于日志，最多读取一小段
+        String errorMessage = httpResponse.getEntity() != null
+            ? ResponseParser.readError(httpResponse.getEntity().getContent(), 2048)
+            : "";
         plugin.debug("API错误响应: " + errorMessage);
-        throw new IOException("Server returned HTTP response code: " + conn.getResponseCode() + "\n" + errorMessage);
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        throw new ApiException(statusCode, "Server returned HTTP response code: " + statusCode + "\n" + errorMessage,
+            ApiException.parseRetryAfter(httpResponse));
     }
 
-    private void updateChatHistory(String playerId, String message, String response) {
-        List<Map<String, String>> history = chatHistories.computeIfAbsent(playerId, k -> new ArrayList<>());
-        
-        // 添加用户消息
-        Map<String, String> userMessage = new HashMap<>();
-        userMessage.put("role", "user");
-        userMessage.put("content", message);
-        history.add(userMessage);
-
-        // 添加AI响应
-        Map<String, String> aiMessage = new HashMap<>();
-        aiMessage.put("role", "assistant");
-        aiMessage.put("content", response);
-        history.add(aiMessage);
-
-        // 检查历史记录长度
-        int maxHistory = configManager.getMaxHistory() * 2;
-        while (history.size() > maxHistory) {
-            history.remove(0);
-            history.remove(0);
+    public int getWeight() {
+        return weight;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    public boolean isStreaming() {
+        return stream;
+    }
+
+    /**
+     * 最近成功请求耗时的 p95，样本不足时返回 -1
+     */
+    public long getLatencyP95() {
+        return latency.getP95();
+    }
+
+    /**
+     * 最近成功请求耗时的指数移动平均(毫秒)，还没有样本时返回 -1
+     */
+    public double getLatencyEwma() {
+        return latency.getEwma();
+    }
+
+    /**
+     * 已提交但尚未完成的请求数，包括排队中的请求
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * 请求没有发出时归还预扣的配额
+     */
+    private void releaseQuota(int estimatedTokens) {
+        if (quota != null) {
+            quota.release(estimatedTokens);
         }
-        
-        plugin.debug(String.format("更新历史记录 [%s]: %d条消息", playerId, history.size()));
     }
 
-    public void clearHistory(String playerId) {
-        chatHistories.remove(playerId);
+    private CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (millis <= 0) {
+            future.complete(null);
+        } else {
+            plugin.debug("API节点 [" + name + "] 配额不足，等待 " + millis + "ms");
+            try {
+                executor.schedule(() -> future.complete(null), millis);
+            } catch (RejectedExecutionException e) {
+                // 重载后计时线程已关闭
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
     }
 
-    public void clearAllHistory() {
-        chatHistories.clear();
+    /**
+     * 估算请求中提示部分的 token 数，direct 类型不发送历史记录
+     */
+    private int estimatePromptTokens(List<Turn> history, String message, Optional<Persona> persona) {
+        return TokenEstimator.estimate("direct".equalsIgnoreCase(type) ? null : history, message, persona.map(Persona::getContext).orElse(null));
     }
 
-    public int getWeight() {
-        return weight;
+    private boolean tracksTokens() {
+        return quota != null && quota.tracksTokens();
+    }
+
+    /**
+     * 配额还有余额，未配置 rpm/tpm 时总是返回 true
+     */
+    public boolean hasQuota() {
+        return quota == null || quota.hasQuota();
+    }
+
+    public String getQuotaStats() {
+        return quota != null ? quota.getStats() : null;
+    }
+
+    private void releasePermit(Throwable throwable) {
+        if (limiter == null) {
+            return;
+        }
+        if (throwable == null) {
+            limiter.onSuccess();
+        } else if (ConcurrencyLimiter.isOverload(throwable)) {
+            limiter.onOverload();
+        } else {
+            limiter.onIgnore();
+        }
+    }
+
+    /**
+     * 节点并发名额还有空余，未启用自适应并发时总是返回 true
+     */
+    public boolean hasCapacity() {
+        return limiter == null || limiter.hasCapacity();
+    }
+
+    public String getConcurrencyStats() {
+        return limiter != null ? limiter.getStats() : "未限制并发";
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
     }
 
     public String getEndpointInfo() {
         return String.format("%s (%s)", name, type);
     }
+
+    public String getPoolStats() {
+        return transport.getPoolStats();
+    }
+
+    public void evictIdleConnections() {
+        transport.evictIdleConnections();
+    }
+
+    public void close() {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            plugin.debug("关闭连接池失败 [" + name + "]: " + e.getMessage());
+        }
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,158 @@
+package cn.ningmo.geminicraftchat.api;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个API节点的HTTP传输层，持有一个保持长连接的连接池，
+ * 避免每次请求都重新进行TCP/TLS握手。
+ */
+public class HttpTransport implements Closeable {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final int maxConnections;
+    private final long idleTimeout;
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong evictedConnections = new AtomicLong();
+
+    public HttpTransport(Map<String, Object> config, ProxyRoute proxyRoute) {
+        Map<?, ?> timeoutConfig = getSection(config, "timeout");
+        int connectTimeout = getInt(timeoutConfig, "connect", 30000);
+        int readTimeout = getInt(timeoutConfig, "read", 30000);
+
+        Map<?, ?> poolConfig = getSection(config, "pool");
+        this.maxConnections = Math.max(1, getInt(poolConfig, "max_connections", 8));
+        this.idleTimeout = getLong(poolConfig, "idle_timeout", 30000L);
+        long ttl = getLong(poolConfig, "ttl", 300000L);
+
+        // 统计新建连接数
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = (route, connConfig) -> {
+            createdConnections.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, connConfig);
+        };
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(
+            createSocketFactories(proxyRoute),
+            connectionFactory, null, null, ttl > 0 ? ttl : -1, TimeUnit.MILLISECONDS);
+        // 每个节点只访问同一个上游，单路由上限等于总上限
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // 空闲过久的连接在复用前先检查是否已被服务端关闭
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(readTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .disableCookieManagement();
+        if (proxyRoute.getType() == ProxyRoute.Type.HTTP) {
+            builder.setProxy(new HttpHost(proxyRoute.getHost(), proxyRoute.getPort()));
+        }
+        this.client = builder.build();
+    }
+
+    /**
+     * SOCKS代理通过为本节点创建的套接字实现，HTTP代理则交给路由规划
+     */
+    private static Registry<ConnectionSocketFactory> createSocketFactories(ProxyRoute proxyRoute) {
+        if (proxyRoute.getType() != ProxyRoute.Type.SOCKS) {
+            return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build();
+        }
+
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", new PlainConnectionSocketFactory() {
+                @Override
+                public Socket createSocket(HttpContext context) {
+                    return new Socket(proxyRoute.getSocksProxy());
+                }
+            })
+            .register("https", new SSLConnectionSocketFactory(SSLContexts.createDefault(),
+                    SSLConnectionSocketFactory.getDefaultHostnameVerifier()) {
+                @Override
+                public Socket createSocket(HttpContext context) {
+                    return new Socket(proxyRoute.getSocksProxy());
+                }
+            })
+            .build();
+    }
+
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        return client.execute(request);
+    }
+
+    /**
+     * 关闭已过期或空闲超时的连接，由定期清理任务调用
+     */
+    public void evictIdleConnections() {
+        int before = connectionManager.getTotalStats().getAvailable();
+        connectionManager.closeExpiredConnections();
+        if (idleTimeout > 0) {
+            connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        int after = connectionManager.getTotalStats().getAvailable();
+        if (before > after) {
+            evictedConnections.addAndGet(before - after);
+        }
+    }
+
+    public String getPoolStats() {
+        PoolStats stats = connectionManager.getTotalStats();
+        return String.format("租用 %d / 空闲 %d / 上限 %d, 已创建 %d, 已回收 %d",
+            stats.getLeased(), stats.getAvailable(), maxConnections,
+            createdConnections.get(), evictedConnections.get());
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    static Map<?, ?> getSection(Map<String, Object> config, String key) {
+        Object value = config.get(key);
+        return value instanceof Map ? (Map<?, ?>) value : Collections.emptyMap();
+    }
+
+    static int getInt(Map<?, ?> section, String key, int def) {
+        Object value = section.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : def;
+    }
+
+    static long getLong(Map<?, ?> section, String key, long def) {
+        Object value = section.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : def;
+    }
+}
@@ -0,0 +1,52 @@
+package cn.ningmo.geminicraftchat.api;
+
+import java.util.Arrays;
+
+/**
+ * 记录节点最近若干次成功请求的耗时，用于估算 p95 延迟和指数移动平均耗时
+ */
+class LatencyTracker {
+    private static final int MIN_SAMPLES = 20;
+    // 指数移动平均中新样本的权重
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final long[] samples;
+    private int next;
+    private int count;
+    private volatile double ewma = -1;
+
+    LatencyTracker(int capacity) {
+        this.samples = new long[Math.max(MIN_SAMPLES, capacity)];
+    }
+
+    synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        ewma = ewma < 0 ? millis : ewma + EWMA_ALPHA * (millis - ewma);
+    }
+
+    /**
+     * 返回耗时的指数移动平均，还没有样本时返回 -1
+     */
+    double getEwma() {
+        return ewma;
+    }
+
+    /**
+     * 返回最近样本的 p95 耗时，样本不足时返回 -1
+     */
+    long getP95() {
+        long[] sorted;
+        synchronized (this) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+    }
+}
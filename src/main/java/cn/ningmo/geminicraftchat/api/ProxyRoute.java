@@ -0,0 +1,81 @@
+package cn.ningmo.geminicraftchat.api;
+
+import cn.ningmo.geminicraftchat.config.ConfigManager;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Map;
+
+/**
+ * 单个API节点的代理路由，创建节点时解析一次，之后不再改变。
+ * 代理只作用于该节点自己的连接，不修改JVM全局的系统属性。
+ */
+public final class ProxyRoute {
+    public enum Type { DIRECT, HTTP, SOCKS }
+
+    private static final ProxyRoute DIRECT = new ProxyRoute(Type.DIRECT, null, 0);
+
+    private final Type type;
+    private final String host;
+    private final int port;
+    private final Proxy socksProxy;
+
+    private ProxyRoute(Type type, String host, int port) {
+        this.type = type;
+        this.host = host;
+        this.port = port;
+        // 代理地址在建立连接时再解析
+        this.socksProxy = type == Type.SOCKS
+            ? new Proxy(Proxy.Type.SOCKS, InetSocketAddress.createUnresolved(host, port))
+            : null;
+    }
+
+    /**
+     * 节点配置中的 http_proxy 优先，未配置时使用全局 api.http_proxy
+     */
+    public static ProxyRoute resolve(Map<String, Object> itemConfig, ConfigManager configManager) {
+        Object override = itemConfig.get("http_proxy");
+        if (override instanceof Map) {
+            Map<?, ?> proxyConfig = (Map<?, ?>) override;
+            Object enabledObj = proxyConfig.get("enabled");
+            if (enabledObj instanceof Boolean && !(Boolean) enabledObj) {
+                return DIRECT;
+            }
+            Object hostObj = proxyConfig.get("host");
+            Object typeObj = proxyConfig.get("type");
+            return of(typeObj != null ? typeObj.toString() : "HTTP",
+                hostObj != null ? hostObj.toString() : "127.0.0.1",
+                HttpTransport.getInt(proxyConfig, "port", 7890));
+        }
+
+        if (configManager.isHttpProxyEnabled()) {
+            return of(configManager.getProxyType(), configManager.getHttpProxyHost(), configManager.getHttpProxyPort());
+        }
+        return DIRECT;
+    }
+
+    private static ProxyRoute of(String type, String host, int port) {
+        return new ProxyRoute("SOCKS".equalsIgnoreCase(type) ? Type.SOCKS : Type.HTTP, host, port);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Proxy getSocksProxy() {
+        return socksProxy;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.DIRECT ? "直连" : type + " " + host + ":" + port;
+    }
+}
@@ -0,0 +1,207 @@
+package cn.ningmo.geminicraftchat.api;
+
+import cn.ningmo.geminicraftchat.config.ConfigManager;
+import cn.ningmo.geminicraftchat.history.Turn;
+import cn.ningmo.geminicraftchat.persona.Persona;
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 单个API节点的请求编码器。模型、采样参数等常量在创建时计算好，
+ * 人设消息序列化一次后缓存，请求体直接写入连接的输出流。
+ */
+class RequestEncoder {
+    private final String type;
+    private final String model;
+    private final double temperature;
+    private final int maxTokens;
+    private final double topP;
+    private final double frequencyPenalty;
+    private final double presencePenalty;
+    private final String generationConfig;
+    // 流式请求是否要求 OpenAI 在最后的事件中返回 token 用量
+    private final boolean includeUsage;
+    private final Map<String, String> personaFragments = new ConcurrentHashMap<>();
+
+    RequestEncoder(String type, Map<String, Object> config, ConfigManager configManager, boolean includeUsage) {
+        this.type = type.toLowerCase();
+        this.includeUsage = includeUsage;
+        Object modelObj = config.get("model");
+        this.model = modelObj != null ? modelObj.toString() : "gpt-3.5-turbo";
+        Object temperatureObj = config.get("temperature");
+        this.temperature = temperatureObj instanceof Number ? ((Number) temperatureObj).doubleValue() : 0.7;
+        this.maxTokens = HttpTransport.getInt(config, "max_tokens", 1024);
+        this.topP = configManager.getConfig().getDouble("api.openai.top_p", 0.95);
+        this.frequencyPenalty = configManager.getConfig().getDouble("api.openai.frequency_penalty", 0.0);
+        this.presencePenalty = configManager.getConfig().getDouble("api.openai.presence_penalty", 0.0);
+        this.generationConfig = toJson(writer -> writer.beginObject()
+            .name("temperature").value(0.7)
+            .name("topP").value(0.95)
+            .name("topK").value(40)
+            .name("maxOutputTokens").value(1024)
+            .endObject());
+    }
+
+    HttpEntity encode(List<Turn> history, String message, Optional<Persona> persona, boolean stream) {
+        List<Turn> turns = history != null ? history : Collections.<Turn>emptyList();
+        switch (type) {
+            case "direct":
+                return new JsonEntity(writer -> writeDirect(writer, turns, message, persona));
+            case "openai":
+                return new JsonEntity(writer -> writeOpenAI(writer, turns, message, persona, stream));
+            default:
+                return new JsonEntity(writer -> writeProxy(writer, turns, message, persona));
+        }
+    }
+
+    private void writeDirect(JsonWriter writer, List<Turn> history, String message,
+                             Optional<Persona> persona) throws IOException {
+        writer.beginObject().name("contents").beginArray();
+        // 如果有人设且历史记录为空，添加人设上下文
+        if (persona.isPresent() && history.isEmpty()) {
+            writer.jsonValue(personaFragment(persona.get()));
+        }
+        writer.beginObject()
+            .name("parts").beginArray().beginObject().name("text").value(message).endObject().endArray()
+            .name("role").value("user")
+            .endObject();
+        writer.endArray();
+        writer.name("generationConfig").jsonValue(generationConfig);
+        writer.endObject();
+    }
+
+    private void writeOpenAI(JsonWriter writer, List<Turn> history, String message,
+                             Optional<Persona> persona, boolean stream) throws IOException {
+        writer.beginObject()
+            .name("model").value(model)
+            .name("temperature").value(temperature)
+            .name("max_tokens").value(maxTokens)
+            .name("top_p").value(topP)
+            .name("frequency_penalty").value(frequencyPenalty)
+            .name("presence_penalty").value(presencePenalty);
+        writer.name("messages").beginArray();
+        if (persona.isPresent()) {
+            writer.jsonValue(personaFragment(persona.get()));
+        }
+        for (Turn turn : history) {
+            writer.beginObject().name("role").value(turn.getRole().getApiName()).name("content").value(turn.getContent()).endObject();
+        }
+        writer.beginObject().name("role").value("user").name("content").value(message).endObject();
+        writer.endArray();
+        if (stream) {
+            writer.name("stream").value(true);
+            if (includeUsage) {
+                writer.name("stream_options").beginObject().name("include_usage").value(true).endObject();
+            }
+        }
+        writer.endObject();
+    }
+
+    private void writeProxy(JsonWriter writer, List<Turn> history, String message,
+                            Optional<Persona> persona) throws IOException {
+        writer.beginObject().name("message").value(message);
+        if (persona.isPresent()) {
+            writer.name("persona").value(persona.get().getContext());
+        }
+        if (!history.isEmpty()) {
+            writer.name("history").beginArray();
+            for (Turn turn : history) {
+                writer.beginObject().name("role").value(turn.getRole().getApiName()).name("content").value(turn.getContent()).endObject();
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    /**
+     * 人设消息按上下文缓存序列化结果，direct 为 contents 元素，openai 为 system 消息
+     */
+    private String personaFragment(Persona persona) {
+        return personaFragments.computeIfAbsent(persona.getContext(), context -> {
+            if ("direct".equals(type)) {
+                return toJson(writer -> writer.beginObject()
+                    .name("parts").beginArray().beginObject().name("text").value(context).endObject().endArray()
+                    .name("role").value("user")
+                    .endObject());
+            }
+            return toJson(writer -> writer.beginObject()
+                .name("role").value("system")
+                .name("content").value(context)
+                .endObject());
+        });
+    }
+
+    private static String toJson(BodyWriter bodyWriter) {
+        StringWriter out = new StringWriter();
+        try {
+            bodyWriter.write(new JsonWriter(out));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    interface BodyWriter {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    /**
+     * 发送时才序列化的 JSON 请求体，以分块方式直接写入输出流
+     */
+    static class JsonEntity extends AbstractHttpEntity {
+        private final BodyWriter bodyWriter;
+
+        JsonEntity(BodyWriter bodyWriter) {
+            this.bodyWriter = bodyWriter;
+            setContentType(ContentType.APPLICATION_JSON.toString());
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeTo(out);
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            Writer out = new OutputStreamWriter(outStream, StandardCharsets.UTF_8);
+            JsonWriter writer = new JsonWriter(out);
+            bodyWriter.write(writer);
+            writer.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
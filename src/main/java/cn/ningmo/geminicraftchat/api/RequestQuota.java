@@ -0,0 +1,137 @@
+package cn.ningmo.geminicraftchat.api;
+
+/**
+ * 单个API节点的每分钟请求数(rpm)和 token 数(tpm)配额，用两个令牌桶实现。
+ * 请求前按估算值预扣，配额不足时返回需要等待的时间；拿到上游实际用量后再修正 token 桶
+ */
+public class RequestQuota {
+    private static final long MINUTE = 60000L;
+
+    private final TokenBucket requests;
+    private final TokenBucket tokens;
+
+    /**
+     * 每分钟只能补充 capacity 个令牌的桶，余额允许因修正变为负数
+     */
+    private static final class TokenBucket {
+        final double capacity;
+        final double refillPerMillis;
+        double available;
+        long lastRefill;
+
+        TokenBucket(int perMinute) {
+            this.capacity = perMinute;
+            this.refillPerMillis = perMinute / (double) MINUTE;
+            this.available = perMinute;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        void refill(long now) {
+            available = Math.min(capacity, available + (now - lastRefill) * refillPerMillis);
+            lastRefill = now;
+        }
+
+        long waitFor(double amount) {
+            double deficit = Math.min(amount, capacity) - available;
+            return deficit <= 0 ? 0 : (long) Math.ceil(deficit / refillPerMillis);
+        }
+    }
+
+    /**
+     * rpm 或 tpm 为 0 表示不限制该项
+     */
+    public RequestQuota(int rpm, int tpm) {
+        this.requests = rpm > 0 ? new TokenBucket(rpm) : null;
+        this.tokens = tpm > 0 ? new TokenBucket(tpm) : null;
+    }
+
+    public boolean tracksTokens() {
+        return tokens != null;
+    }
+
+    /**
+     * 预扣一次请求和 estimatedTokens 个 token，返回需要等待的毫秒数。
+     * 需要等待超过 maxWait 时不扣除并返回 -1
+     */
+    public synchronized long reserve(int estimatedTokens, long maxWait) {
+        long now = System.currentTimeMillis();
+        long wait = 0;
+        if (requests != null) {
+            requests.refill(now);
+            wait = Math.max(wait, requests.waitFor(1));
+        }
+        if (tokens != null) {
+            tokens.refill(now);
+            wait = Math.max(wait, tokens.waitFor(estimatedTokens));
+        }
+        if (wait > maxWait) {
+            return -1;
+        }
+        if (requests != null) {
+            requests.available -= 1;
+        }
+        if (tokens != null) {
+            tokens.available -= Math.min(estimatedTokens, tokens.capacity);
+        }
+        return wait;
+    }
+
+    /**
+     * 按上游报告的实际用量修正预扣的 token 数
+     */
+    public synchronized void correct(int estimatedTokens, long actualTokens) {
+        if (tokens == null || actualTokens < 0) {
+            return;
+        }
+        tokens.refill(System.currentTimeMillis());
+        tokens.available = Math.min(tokens.capacity,
+            tokens.available + Math.min(estimatedTokens, tokens.capacity) - actualTokens);
+    }
+
+    /**
+     * 预扣后没有发出请求（被拒绝或取消）时归还预扣的请求数和 token 数
+     */
+    public synchronized void release(int estimatedTokens) {
+        long now = System.currentTimeMillis();
+        if (requests != null) {
+            requests.refill(now);
+            requests.available = Math.min(requests.capacity, requests.available + 1);
+        }
+        if (tokens != null) {
+            tokens.refill(now);
+            tokens.available = Math.min(tokens.capacity, tokens.available + Math.min(estimatedTokens, tokens.capacity));
+        }
+    }
+
+    /**
+     * 两个桶都还有余额时返回 true
+     */
+    public synchronized boolean hasQuota() {
+        long now = System.currentTimeMillis();
+        if (requests != null) {
+            requests.refill(now);
+            if (requests.available < 1) {
+                return false;
+            }
+        }
+        if (tokens != null) {
+            tokens.refill(now);
+            return tokens.available > 0;
+        }
+        return true;
+    }
+
+    public synchronized String getStats() {
+        long now = System.currentTimeMillis();
+        StringBuilder stats = new StringBuilder("配额");
+        if (requests != null) {
+            requests.refill(now);
+            stats.append(String.format(" rpm %d / %d", (long) Math.floor(requests.available), (long) requests.capacity));
+        }
+        if (tokens != null) {
+            tokens.refill(now);
+            stats.append(String.format(" tpm %d / %d", (long) Math.floor(tokens.available), (long) tokens.capacity));
+        }
+        return stats.toString();
+    }
+}
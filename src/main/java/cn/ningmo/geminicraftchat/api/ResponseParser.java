@@ -0,0 +1,447 @@
+package cn.ningmo.geminicraftchat.api;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 直接从响应流中拉取回答文本，不构建完整的 JSON 树，也不缓存整个响应体
+ */
+final class ResponseParser {
+    static final Object[] DIRECT_TEXT = {"candidates", 0, "content", "parts", 0, "text"};
+    static final Object[] OPENAI_TEXT = {"choices", 0, "message", "content"};
+    static final Object[] OPENAI_DELTA = {"choices", 0, "delta", "content"};
+    static final Object[] PROXY_TEXT = {"response"};
+    static final Object[] DIRECT_USAGE = {"usageMetadata", "totalTokenCount"};
+    static final Object[] OPENAI_USAGE = {"usage", "total_tokens"};
+
+    /**
+     * 回答文本以及上游报告的总 token 数，未报告时为 -1。
+     * truncated 表示回答超过长度上限，text 只包含上限以内的部分
+     */
+    static final class Result {
+        final String text;
+        final long totalTokens;
+        final boolean truncated;
+
+        Result(String text, long totalTokens, boolean truncated) {
+            this.text = text;
+            this.totalTokens = totalTokens;
+            this.truncated = truncated;
+        }
+    }
+
+    private ResponseParser() {
+    }
+
+    /**
+     * 从响应体中读取 path 指向的字符串，读取字符数超过 maxBodyChars 时立即中止。
+     * 回答收集到 maxTextChars 个字符后停止读取，找到回答后不再解析剩余内容
+     */
+    static Result readText(InputStream body, Object[] path, int maxBodyChars, int maxTextChars) throws IOException {
+        LimitedReader reader = new LimitedReader(new InputStreamReader(body, StandardCharsets.UTF_8), maxBodyChars);
+        JsonCursor json = new JsonCursor(reader, maxTextChars, true);
+        try {
+            String text = extract(json, path, 0);
+            if (text == null) {
+                throw new IOException("响应中没有找到回答内容");
+            }
+            return new Result(text, -1, json.truncated);
+        } finally {
+            // 超出上限或回答被截断时不再读完剩余内容，由关闭响应断开连接
+            if (!reader.isExceeded() && !json.truncated) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * 同时读取回答文本和 token 用量。逐个处理顶层字段，两者都找到后不再解析剩余内容。
+     * 回答超过 maxTextChars 时超出的部分只扫描不保存，以便继续读取之后的用量
+     */
+    static Result readTextAndUsage(InputStream body, Object[] path, Object[] usagePath, int maxBodyChars,
+                                   int maxTextChars) throws IOException {
+        LimitedReader reader = new LimitedReader(new InputStreamReader(body, StandardCharsets.UTF_8), maxBodyChars);
+        try {
+            JsonCursor json = new JsonCursor(reader, maxTextChars, false);
+            String text = null;
+            String usage = null;
+            if (json.peek() == '{') {
+                json.begin('{');
+                while (json.hasNext() && (text == null || usage == null)) {
+                    String name = json.nextName();
+                    if (text == null && path[0].equals(name)) {
+                        text = readValue(json, path, 1);
+                    } else if (usage == null && usagePath[0].equals(name)) {
+                        usage = readValue(json, usagePath, 1);
+                    } else {
+                        json.skipValue();
+                    }
+                }
+            }
+            if (text == null) {
+                throw new IOException("响应中没有找到回答内容");
+            }
+            return new Result(text, parseTokens(usage), json.truncated);
+        } finally {
+            if (!reader.isExceeded()) {
+                reader.close();
+            }
+        }
+    }
+
+    static long parseTokens(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析单个流式事件的 JSON，返回 path 指向的字符串，不存在时返回 null
+     */
+    static String readEvent(String data, Object[] path) throws IOException {
+        return extract(new JsonCursor(new StringReader(data), Integer.MAX_VALUE, true), path, 0);
+    }
+
+    /**
+     * 读取错误响应体，最多保留 maxChars 个字符
+     */
+    static String readError(InputStream body, int maxChars) throws IOException {
+        StringBuilder error = new StringBuilder();
+        Reader reader = new InputStreamReader(body, StandardCharsets.UTF_8);
+        char[] buffer = new char[512];
+        int read;
+        while (error.length() < maxChars && (read = reader.read(buffer, 0, Math.min(buffer.length, maxChars - error.length()))) != -1) {
+            error.append(buffer, 0, read);
+        }
+        if (error.length() < maxChars) {
+            reader.close();
+        }
+        return error.toString();
+    }
+
+    private static String extract(JsonCursor reader, Object[] path, int depth) throws IOException {
+        Object step = path[depth];
+        boolean last = depth == path.length - 1;
+
+        if (step instanceof String) {
+            if (reader.peek() != '{') {
+                return null;
+            }
+            reader.begin('{');
+            while (reader.hasNext()) {
+                if (!step.equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                if (!last) {
+                    return extract(reader, path, depth + 1);
+                }
+                return reader.isScalar() ? reader.nextScalar() : null;
+            }
+            return null;
+        }
+
+        if (reader.peek() != '[') {
+            return null;
+        }
+        reader.begin('[');
+        int index = (Integer) step;
+        for (int i = 0; i < index && reader.hasNext(); i++) {
+            reader.skipValue();
+        }
+        if (!reader.hasNext()) {
+            return null;
+        }
+        if (!last) {
+            return extract(reader, path, depth + 1);
+        }
+        return reader.isScalar() ? reader.nextScalar() : null;
+    }
+
+    /**
+     * 与 extract 相同，但总是完整读完当前值，读取后可以继续解析同级字段
+     */
+    private static String readValue(JsonCursor reader, Object[] path, int depth) throws IOException {
+        if (depth == path.length) {
+            if (reader.isScalar()) {
+                return reader.nextScalar();
+            }
+            reader.skipValue();
+            return null;
+        }
+
+        Object step = path[depth];
+        String found = null;
+        if (step instanceof String) {
+            if (reader.peek() != '{') {
+                reader.skipValue();
+                return null;
+            }
+            reader.begin('{');
+            while (reader.hasNext()) {
+                if (found == null && step.equals(reader.nextName())) {
+                    found = readValue(reader, path, depth + 1);
+                } else {
+                    if (found != null) {
+                        reader.nextName();
+                    }
+                    reader.skipValue();
+                }
+            }
+            reader.end('}');
+            return found;
+        }
+
+        if (reader.peek() != '[') {
+            reader.skipValue();
+            return null;
+        }
+        reader.begin('[');
+        int index = (Integer) step;
+        for (int i = 0; reader.hasNext(); i++) {
+            if (i == index) {
+                found = readValue(reader, path, depth + 1);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.end(']');
+        return found;
+    }
+
+    /**
+     * 按需从 Reader 中读取的简单 JSON 游标，只支持按路径查找所需的操作。
+     * 逗号和冒号当作空白跳过。读取字符串值时最多保存 maxTextChars 个字符，
+     * stopAtLimit 时达到上限后不再读取，否则只扫描到字符串结束而不保存
+     */
+    private static final class JsonCursor {
+        private final Reader in;
+        private final int maxTextChars;
+        private final boolean stopAtLimit;
+        private final char[] buffer = new char[2048];
+        private int pos;
+        private int limit;
+        boolean truncated;
+
+        JsonCursor(Reader in, int maxTextChars, boolean stopAtLimit) {
+            this.in = in;
+            this.maxTextChars = maxTextChars;
+            this.stopAtLimit = stopAtLimit;
+        }
+
+        /**
+         * 下一个有意义的字符，不消耗，结束时返回 -1
+         */
+        int peek() throws IOException {
+            while (pos < limit || fill()) {
+                char c = buffer[pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != ',' && c != ':') {
+                    return c;
+                }
+                pos++;
+            }
+            return -1;
+        }
+
+        void begin(char open) throws IOException {
+            if (peek() != open) {
+                throw new IOException("响应格式错误");
+            }
+            pos++;
+        }
+
+        void end(char close) throws IOException {
+            begin(close);
+        }
+
+        boolean hasNext() throws IOException {
+            int c = peek();
+            return c != '}' && c != ']' && c != -1;
+        }
+
+        String nextName() throws IOException {
+            begin('"');
+            return readString(Integer.MAX_VALUE, false);
+        }
+
+        boolean isScalar() throws IOException {
+            int c = peek();
+            return c == '"' || c == '-' || (c >= '0' && c <= '9');
+        }
+
+        String nextScalar() throws IOException {
+            if (peek() == '"') {
+                pos++;
+                return readString(maxTextChars, stopAtLimit);
+            }
+            StringBuilder literal = new StringBuilder();
+            while ((pos < limit || fill()) && !isDelimiter(buffer[pos])) {
+                literal.append(buffer[pos++]);
+            }
+            return literal.toString();
+        }
+
+        void skipValue() throws IOException {
+            int c = peek();
+            if (c == '"') {
+                pos++;
+                readString(0, false);
+                return;
+            }
+            if (c != '{' && c != '[') {
+                while ((pos < limit || fill()) && !isDelimiter(buffer[pos])) {
+                    pos++;
+                }
+                return;
+            }
+            int depth = 0;
+            do {
+                char next = nextChar();
+                if (next == '"') {
+                    readString(0, false);
+                } else if (next == '{' || next == '[') {
+                    depth++;
+                } else if (next == '}' || next == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        }
+
+        /**
+         * 读取开头引号之后的字符串内容，最多保存 max 个字符
+         */
+        private String readString(int max, boolean stop) throws IOException {
+            StringBuilder value = new StringBuilder();
+            boolean skipped = false;
+            while (true) {
+                char c = nextChar();
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    c = unescape(nextChar());
+                }
+                if (value.length() < max) {
+                    value.append(c);
+                    continue;
+                }
+                skipped = true;
+                if (stop) {
+                    break;
+                }
+            }
+            if (skipped && max > 0) {
+                truncated = true;
+                // 不在代理对中间截断
+                int length = value.length();
+                if (length > 0 && Character.isHighSurrogate(value.charAt(length - 1))) {
+                    value.setLength(length - 1);
+                }
+            }
+            return value.toString();
+        }
+
+        private char unescape(char c) throws IOException {
+            switch (c) {
+                case 'n':
+                    return '\n';
+                case 't':
+                    return '\t';
+                case 'r':
+                    return '\r';
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'u': {
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(nextChar(), 16);
+                        if (digit < 0) {
+                            throw new IOException("响应格式错误");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    return (char) code;
+                }
+                default:
+                    return c;
+            }
+        }
+
+        private char nextChar() throws IOException {
+            if (pos == limit && !fill()) {
+                throw new IOException("响应意外结束");
+            }
+            return buffer[pos++];
+        }
+
+        private boolean fill() throws IOException {
+            int read = in.read(buffer, 0, buffer.length);
+            if (read <= 0) {
+                return false;
+            }
+            pos = 0;
+            limit = read;
+            return true;
+        }
+
+        private static boolean isDelimiter(char c) {
+            return c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+    }
+
+    /**
+     * 限制可读取字符总数的 Reader，超出时抛出异常
+     */
+    static class LimitedReader extends FilterReader {
+        private final int limit;
+        private int count;
+        private boolean exceeded;
+
+        LimitedReader(Reader in, int limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) {
+                count(1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int read = super.read(cbuf, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) throws IOException {
+            count += read;
+            if (count > limit) {
+                exceeded = true;
+                throw new IOException("响应体超过 " + limit + " 字符上限，已中止读取");
+            }
+        }
+
+        boolean isExceeded() {
+            return exceeded;
+        }
+    }
+}
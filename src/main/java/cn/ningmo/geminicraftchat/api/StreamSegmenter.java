@@ -0,0 +1,66 @@
+package cn.ningmo.geminicraftchat.api;
+
+import java.util.function.Consumer;
+
+/**
+ * 将流式返回的文本片段拼接成完整的句子或行，逐段交给调用方
+ */
+class StreamSegmenter {
+    private final Consumer<String> consumer;
+    private final StringBuilder pending = new StringBuilder();
+    private final StringBuilder full = new StringBuilder();
+    private int segments;
+
+    StreamSegmenter(Consumer<String> consumer) {
+        this.consumer = consumer;
+    }
+
+    void append(String text) {
+        full.append(text);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                emit();
+                continue;
+            }
+            // 英文句末标点需要后面跟空白才算结束，避免拆开小数和缩写
+            if (Character.isWhitespace(c) && endsWithAsciiTerminator()) {
+                emit();
+                continue;
+            }
+            pending.append(c);
+            if (c == '。' || c == '！' || c == '？' || c == '…') {
+                emit();
+            }
+        }
+    }
+
+    /**
+     * 输出剩余内容并返回完整文本
+     */
+    String finish() {
+        emit();
+        return full.toString();
+    }
+
+    int getSegmentCount() {
+        return segments;
+    }
+
+    private boolean endsWithAsciiTerminator() {
+        if (pending.length() == 0) {
+            return false;
+        }
+        char last = pending.charAt(pending.length() - 1);
+        return last == '.' || last == '!' || last == '?';
+    }
+
+    private void emit() {
+        String segment = pending.toString().trim();
+        pending.setLength(0);
+        if (!segment.isEmpty()) {
+            segments++;
+            consumer.accept(segment);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import cn.ningmo.geminicraftchat.GeminiCraftChat;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 拥有广播接收权限的在线玩家列表。玩家加入、退出和切换世界时更新，
+ * 另有主线程定时任务重新检查所有在线玩家，修正权限插件在运行中改动的权限。
+ * 广播时只遍历这个列表，不再逐个检查权限
+ */
+public class BroadcastRecipients {
+    private static final String RECEIVE_PERMISSION = "gcc.broadcast.receive";
+
+    private final GeminiCraftChat plugin;
+    private final long refreshInterval;
+    private final Map<UUID, Player> recipients = new ConcurrentHashMap<>();
+    private final AtomicLong reconciles = new AtomicLong();
+    private final AtomicLong corrections = new AtomicLong();
+    private BukkitTask refreshTask;
+
+    public BroadcastRecipients(GeminiCraftChat plugin) {
+        this.plugin = plugin;
+        this.refreshInterval = Math.max(20, plugin.getConfig().getLong("chat.broadcast.refresh_interval", 600));
+    }
+
+    /**
+     * 立即检查一次在线玩家并开始定时检查，需要在主线程调用
+     */
+    public void start() {
+        reconcile();
+        if (refreshTask == null) {
+            refreshTask = plugin.getServer().getScheduler().runTaskTimer(plugin, this::reconcile,
+                refreshInterval, refreshInterval);
+        }
+    }
+
+    public void stop() {
+        if (refreshTask != null) {
+            refreshTask.cancel();
+            refreshTask = null;
+        }
+        recipients.clear();
+    }
+
+    /**
+     * 重新检查单个玩家的接收权限，返回是否有变化
+     */
+    public boolean update(Player player) {
+        if (player.isOnline() && player.hasPermission(RECEIVE_PERMISSION)) {
+            return recipients.put(player.getUniqueId(), player) != player;
+        }
+        return recipients.remove(player.getUniqueId()) != null;
+    }
+
+    public void remove(Player player) {
+        recipients.remove(player.getUniqueId());
+    }
+
+    /**
+     * 对照在线玩家重新计算整个列表，修正遗漏的事件和运行中改动的权限
+     */
+    public void reconcile() {
+        Set<UUID> online = new HashSet<>();
+        int changed = 0;
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            online.add(player.getUniqueId());
+            if (update(player)) {
+                changed++;
+            }
+        }
+        for (UUID id : recipients.keySet()) {
+            if (!online.contains(id) && recipients.remove(id) != null) {
+                changed++;
+            }
+        }
+        reconciles.incrementAndGet();
+        if (changed > 0) {
+            corrections.addAndGet(changed);
+            plugin.debug("广播接收者列表已修正 " + changed + " 人");
+        }
+    }
+
+    /**
+     * 当前的接收者，可在任意线程遍历
+     */
+    public Collection<Player> get() {
+        return recipients.values();
+    }
+
+    public String getStats() {
+        return String.format("接收者 %d, 已校对 %d 次, 修正 %d 人",
+            recipients.size(), reconciles.get(), corrections.get());
+    }
+}
@@ -1,15 +1,32 @@
 package cn.ningmo.geminicraftchat.chat;
 
 import cn.ningmo.geminicraftchat.GeminiCraftChat;
+import cn.ningmo.geminicraftchat.api.ApiException;
+import cn.ningmo.geminicraftchat.api.ApiExecutor;
 import cn.ningmo.geminicraftchat.api.GeminiService;
 import cn.ningmo.geminicraftchat.config.ConfigManager;
+import cn.ningmo.geminicraftchat.config.ConfigSnapshot;
+import cn.ningmo.geminicraftchat.config.MessageTemplate;
+import cn.ningmo.geminicraftchat.history.ConversationStore;
+import cn.ningmo.geminicraftchat.history.HistoryLog;
+import cn.ningmo.geminicraftchat.history.Turn;
 import cn.ningmo.geminicraftchat.persona.Persona;
 import org.bukkit.entity.Player;
 import org.bukkit.ChatColor;
 import org.bukkit.scheduler.BukkitTask;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class ChatManager {
@@ -20,26 +37,27 @@ public class ChatManager {
     private final ConfigManager configManager;
     private final Map<String, String> playerPersonas;
     private final Map<String, Long> cooldowns;
-    private final Map<GeminiService, ServiceStatus> serviceStatuses;
-    private final Map<String, List<Long>> requestTimes = new ConcurrentHashMap<>();
+    private final RateLimiter rateLimiter;
+    private final ApiExecutor executor;
+    private final ResponseCache responseCache;
+    private final InFlightRequests inFlightRequests;
+    private final RequestHedger hedger;
+    private final DeliveryQueue delivery;
+    private final BroadcastRecipients broadcastRecipients;
+    private final ConversationStore conversations;
+    private final HistoryCompactor compactor;
     private BukkitTask cleanupTask;
+    // 已关闭，重载时由新的聊天管理器接替
+    private volatile boolean closed;
 
-    // 添加服务状态内部类
-    private static class ServiceStatus {
-        int errorCount;
-        long disabledUntil;
-        
-        boolean isAvailable() {
-            return System.currentTimeMillis() >= disabledUntil;
-        }
-        
-        void recordError() {
-            errorCount++;
-        }
-        
-        void reset() {
-            errorCount = 0;
-            disabledUntil = 0;
+    // 上游返回的回答以及给出它的节点
+    private static class Answer {
+        final GeminiService service;
+        final String response;
+
+        Answer(GeminiService service, String response) {
+            this.service = service;
+            this.response = response;
         }
     }
 
@@ -51,7 +69,26 @@ public class ChatManager {
         this.configManager = plugin.getConfigManager();
         this.playerPersonas = new ConcurrentHashMap<>();
         this.cooldowns = new ConcurrentHashMap<>();
-        this.serviceStatuses = new ConcurrentHashMap<>();
+        this.responseCache = new ResponseCache(plugin.getConfig());
+        this.inFlightRequests = new InFlightRequests();
+        this.rateLimiter = new RateLimiter(plugin.getConfig());
+        this.hedger = new RequestHedger(plugin.getConfig());
+        // 所有节点共用一份对话历史
+        this.conversations = new ConversationStore(configManager,
+            plugin.getConfig().getBoolean("chat.history.persistence.enabled", true)
+                ? new HistoryLog(plugin, new File(plugin.getDataFolder(), "history"), configManager.getMaxHistory())
+                : null);
+        this.compactor = new HistoryCompactor(plugin, conversations, this::selectSummaryService);
+        // 异步线程产生的回复统一由主线程按节奏批量发送
+        this.delivery = new DeliveryQueue(plugin);
+        this.delivery.start();
+        this.broadcastRecipients = new BroadcastRecipients(plugin);
+        this.broadcastRecipients.start();
+        
+        // 上游请求使用插件自有的有界线程池
+        this.executor = new ApiExecutor(
+            plugin.getConfig().getInt("api.executor.threads", 8),
+            plugin.getConfig().getInt("api.executor.queue_size", 32));
         
         // 初始化API服务列表和状态
         List<Map<?, ?>> items = plugin.getConfig().getMapList("api.items");
@@ -75,9 +112,8 @@ public class ChatManager {
                 String nodeType = typeObj != null ? typeObj.toString() : "proxy";
                 
                 // 创建服务实例
-                GeminiService service = new GeminiService(plugin, item, nodeType);
+                GeminiService service = new GeminiService(plugin, item, nodeType, executor);
                 apiServices.add(service);
-                serviceStatuses.put(service, new ServiceStatus());
                 
                 plugin.debug("成功加载API节点: " + service.getEndpointInfo());
             } catch (Exception e) {
@@ -93,18 +129,21 @@ public class ChatManager {
     }
 
     public void handleChat(Player player, String message) {
+        // 作为合并请求的发起者时登记的结果，出错时必须结束它，否则等待的玩家会一直等下去
+        CompletableFuture<String> flight = null;
         try {
             String playerId = player.getName();
             
             // 检查消息长度
-            int maxLength = configManager.getConfig().getInt("security.limits.max_message_length", 500);
+            ConfigSnapshot config = configManager.getSnapshot();
+            int maxLength = config.getMaxMessageLength();
             if (message.length() > maxLength) {
                 player.sendMessage(ChatColor.RED + "消息长度超过限制 (" + maxLength + " 字符)");
                 return;
             }
             
             // 检查速率限制
-            if (!checkRateLimit(playerId)) {
+            if (!rateLimiter.tryAcquire(player)) {
                 player.sendMessage(ChatColor.RED + "发送消息太快，请稍后再试");
                 return;
             }
@@ -122,9 +161,6 @@ public class ChatManager {
                 return;
             }
 
-            // 发送思考消息
-            player.sendMessage(String.format(configManager.getThinkingFormat()));
-
             // 获取当前人设
             Optional<Persona> persona = getCurrentPersona(playerId);
 
@@ -133,11 +169,44 @@ public class ChatManager {
                 broadcastQuestion(player, message);
             }
 
+            // 无状态问题先查回答缓存
+            String personaKey = getCurrentPersonaKey(playerId);
+            boolean hasHistory = hasHistory(playerId);
+            String cacheKey = responseCache.keyFor(personaKey, message, hasHistory);
+            String cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+            if (cached != null) {
+                plugin.debug("命中回答缓存: " + playerId);
+                recordExchange(playerId, message, cached);
+                deliverResponse(player, persona, cached);
+                setCooldown(playerId);
+                return;
+            }
+
+            // 发送思考消息
+            player.sendMessage(config.getThinkingFormat());
+
+            // 相同的无状态问题正在请求中时直接等待它的结果
+            if (!hasHistory && config.isCoalesceRequests()) {
+                String flightKey = personaKey + '\u0000' + ResponseCache.normalizeQuestion(message);
+                flight = new CompletableFuture<>();
+                CompletableFuture<String> existing = inFlightRequests.attachOrLead(flightKey, flight);
+                if (existing != null) {
+                    plugin.debug("合并相同问题的请求: " + playerId);
+                    attachToFlight(player, message, persona, existing);
+                    setCooldown(playerId);
+                    return;
+                }
+            }
+
+            // 在聊天线程中取出历史记录，可能需要从日志读取，重试和对冲都复用这一份
+            List<Turn> history = conversations.get(playerId);
+
             // 获取API服务
             GeminiService service = selectApiService();
             
             // 发送请求
-            sendMessageWithRetry(player, message, persona, service, 0);
+            sendMessageWithRetry(new ChatRequest(player, message, persona, history, cacheKey, flight, delivery),
+                service, 0);
 
             // 设置冷却时间
             setCooldown(playerId);
@@ -145,6 +214,10 @@ public class ChatManager {
             plugin.getLogger().severe("处理聊天消息时发生错误: " + e.getMessage());
             e.printStackTrace();
             player.sendMessage(ChatColor.RED + "处理消息时发生错误，请稍后重试");
+            // 结束后会从进行中的请求中移除，之后相同的问题重新发起请求
+            if (flight != null) {
+                flight.completeExceptionally(new IllegalStateException(ChatColor.RED + "处理消息时发生错误，请稍后重试"));
+            }
         }
     }
 
@@ -162,11 +235,13 @@ public class ChatManager {
         return new ArrayList<>(configManager.getConfig().getConfigurationSection("personas").getKeys(false));
     }
 
-    private Optional<Persona> getCurrentPersona(String playerId) {
+    private String getCurrentPersonaKey(String playerId) {
         String personaName = playerPersonas.get(playerId);
-        if (personaName == null) {
-            personaName = "default";
-        }
+        return personaName != null ? personaName : "default";
+    }
+
+    private Optional<Persona> getCurrentPersona(String playerId) {
+        String personaName = getCurrentPersonaKey(playerId);
         
         if (configManager.getConfig().contains("personas." + personaName)) {
             String name = configManager.getConfig().getString("personas." + personaName + ".name");
@@ -193,21 +268,39 @@ public class ChatManager {
         cooldowns.put(playerId, System.currentTimeMillis());
     }
 
-    public void clearHistory(String playerId) {
-        for (GeminiService service : apiServices) {
-            service.clearHistory(playerId);
+    private boolean hasHistory(String playerId) {
+        return conversations.hasHistory(playerId);
+    }
+
+    /**
+     * 记录最终采用的回答，缓存命中和合并请求的回答同样写入
+     */
+    private void recordExchange(String playerId, String message, String response) {
+        if (closed) {
+            // 重载前发出的请求在关闭后才返回时，交给新的聊天管理器记录
+            ChatManager current = plugin.getChatManager();
+            if (current != null && current != this) {
+                current.recordExchange(playerId, message, response);
+                return;
+            }
         }
+        int size = conversations.record(playerId, message, response);
+        plugin.debug(String.format("更新历史记录 [%s]: %d条消息", playerId, size));
+        compactor.maybeCompact(playerId);
+    }
+
+    public void clearHistory(String playerId) {
+        conversations.clear(playerId);
     }
 
     public void clearAllHistory() {
-        for (GeminiService service : apiServices) {
-            service.clearAllHistory();
-        }
+        conversations.clearAll();
     }
 
     private boolean shouldBroadcast(Player player, Optional<Persona> persona) {
+        ConfigSnapshot config = configManager.getSnapshot();
         // 检查是否启用广播
-        if (!configManager.getConfig().getBoolean("chat.broadcast.enabled", true)) {
+        if (!config.isBroadcastEnabled()) {
             return false;
         }
 
@@ -218,8 +311,8 @@ public class ChatManager {
 
         // 检查当前人设是否在忽略列表中
         if (persona.isPresent()) {
-            List<String> ignorePersonas = configManager.getConfig().getStringList("chat.broadcast.ignore_personas");
-            if (ignorePersonas.contains(playerPersonas.get(player.getName()))) {
+            String personaKey = playerPersonas.get(player.getName());
+            if (personaKey != null && config.getBroadcastIgnorePersonas().contains(personaKey)) {
                 return false;
             }
         }
@@ -228,115 +321,112 @@ public class ChatManager {
     }
 
     private void broadcastQuestion(Player player, String message) {
-        String format = configManager.getConfig().getString("chat.broadcast.format.question", 
-            "§8[AI] §7{player} §f问: §7{message}");
-        String broadcast = format
-            .replace("{player}", player.getName())
-            .replace("{message}", message);
-
-        // 广播给其他玩家
-        if (configManager.getConfig().getBoolean("chat.broadcast.to_players", true)) {
-            for (Player p : plugin.getServer().getOnlinePlayers()) {
-                if (p != player && p.hasPermission("gcc.broadcast.receive")) {
-                    p.sendMessage(broadcast);
-                }
-            }
-        }
-
-        // 广播给控制台
-        if (configManager.getConfig().getBoolean("chat.broadcast.to_console", true)) {
-            plugin.getLogger().info(ChatColor.stripColor(broadcast));
-        }
+        broadcast(player, configManager.getSnapshot().getQuestionFormat(), message);
     }
 
     private void broadcastAnswer(Player player, String response) {
-        String format = configManager.getConfig().getString("chat.broadcast.format.answer", 
-            "§8[AI] §7回答 §f{player}: §7{message}");
-        String broadcast = format
-            .replace("{player}", player.getName())
-            .replace("{message}", response);
+        broadcast(player, configManager.getSnapshot().getAnswerFormat(), response);
+    }
+
+    private void broadcast(Player player, MessageTemplate format, String message) {
+        ConfigSnapshot config = configManager.getSnapshot();
+        String broadcast = format.format(player.getName(), message);
 
         // 广播给其他玩家
-        if (configManager.getConfig().getBoolean("chat.broadcast.to_players", true)) {
-            for (Player p : plugin.getServer().getOnlinePlayers()) {
-                if (p != player && p.hasPermission("gcc.broadcast.receive")) {
-                    p.sendMessage(broadcast);
+        if (config.isBroadcastToPlayers()) {
+            for (Player p : broadcastRecipients.get()) {
+                if (p != player) {
+                    delivery.send(p, broadcast);
                 }
             }
         }
 
         // 广播给控制台
-        if (configManager.getConfig().getBoolean("chat.broadcast.to_console", true)) {
+        if (config.isBroadcastToConsole()) {
             plugin.getLogger().info(ChatColor.stripColor(broadcast));
         }
     }
 
     private boolean containsCommandSyntax(String text) {
-        if (!configManager.getConfig().getBoolean("security.command_check.enabled", true)) {
+        ConfigSnapshot config = configManager.getSnapshot();
+        if (!config.isCommandCheckEnabled()) {
             return false;
         }
 
-        String lowerText = text.toLowerCase();
-        
-        // 检查命令
-        List<String> blockedCommands = configManager.getConfig().getStringList("security.command_check.blocked_commands");
-        for (String command : blockedCommands) {
-            if (lowerText.contains(command.toLowerCase())) {
-                return true;
-            }
-        }
-        
-        // 检查关键词
-        List<String> blockedKeywords = configManager.getConfig().getStringList("security.command_check.blocked_keywords");
-        for (String keyword : blockedKeywords) {
-            if (lowerText.contains(keyword.toLowerCase())) {
-                return true;
-            }
+        // 一次扫描检查所有屏蔽命令和关键词
+        String rule = config.getCommandMatcher().find(text);
+        if (rule != null) {
+            plugin.debug("命中命令检查规则: " + rule);
+            return true;
         }
-        
         return false;
     }
 
+    /**
+     * 从熔断器未打开的节点中按负载均衡模式选择节点，并占用它的请求许可。
+     * 所有节点都不可用时返回 null，不再强制重置节点状态
+     */
     private GeminiService selectApiService() {
-        String mode = plugin.getConfig().getString("api.mode", "single");
-        List<GeminiService> availableServices = getAvailableServices();
-        
-        if (availableServices.isEmpty()) {
-            plugin.debug("没有可用的API节点，尝试重置所有节点状态");
-            resetAllServices();
-            availableServices = new ArrayList<>(apiServices);
-        }
-        
-        if (availableServices.isEmpty()) {
-            plugin.getLogger().severe("所有API节点都不可用！");
-            return null;
+        List<GeminiService> availableServices = preferCapacity(getAvailableServices());
+        while (!availableServices.isEmpty()) {
+            GeminiService service = selectByMode(availableServices);
+            // 半开节点的探测名额可能已被其他请求占用
+            if (service.getCircuitBreaker().tryAcquire()) {
+                return service;
+            }
+            availableServices.remove(service);
         }
-        
-        switch (mode.toLowerCase()) {
+        plugin.getLogger().warning("所有API节点都不可用！");
+        return null;
+    }
+
+    /**
+     * 有节点还有并发名额和配额时只在这些节点中选择，让超出上限的请求分流到其他节点；
+     * 都已满时保留全部节点，请求在选中的节点上短暂排队
+     */
+    private List<GeminiService> preferCapacity(List<GeminiService> services) {
+        List<GeminiService> withCapacity = services.stream()
+            .filter(service -> service.hasCapacity() && service.hasQuota())
+            .collect(Collectors.toList());
+        return withCapacity.isEmpty() ? services : withCapacity;
+    }
+
+    private GeminiService selectByMode(List<GeminiService> availableServices) {
+        switch (configManager.getSnapshot().getApiMode()) {
             case "random":
                 return selectRandomService(availableServices);
             case "failover":
                 return selectFailoverService(availableServices);
+            case "least-latency":
+                return selectLeastLatencyService(availableServices);
             case "single":
             default:
                 return availableServices.get(0);
         }
     }
 
+    /**
+     * 生成历史摘要使用成本最低的可用节点，没有空闲节点时返回 null，等下次再压缩
+     */
+    private GeminiService selectSummaryService() {
+        GeminiService cheapest = null;
+        for (GeminiService service : getAvailableServices()) {
+            if (!service.hasCapacity() || !service.hasQuota()) {
+                continue;
+            }
+            if (cheapest == null || service.getCost() < cheapest.getCost()) {
+                cheapest = service;
+            }
+        }
+        return cheapest != null && cheapest.getCircuitBreaker().tryAcquire() ? cheapest : null;
+    }
+
     private List<GeminiService> getAvailableServices() {
         return apiServices.stream()
-            .filter(service -> {
-                ServiceStatus status = serviceStatuses.get(service);
-                return status != null && status.isAvailable();
-            })
+            .filter(service -> service.getCircuitBreaker().isAvailable())
             .collect(Collectors.toList());
     }
 
-    private void resetAllServices() {
-        serviceStatuses.values().forEach(ServiceStatus::reset);
-        plugin.debug("已重置所有API服务状态");
-    }
-
     private GeminiService selectRandomService(List<GeminiService> availableServices) {
         int totalWeight = availableServices.stream()
             .mapToInt(GeminiService::getWeight)
@@ -363,100 +453,385 @@ public class ChatManager {
         return availableServices.get(currentApiIndex);
     }
 
-    private void handleServiceError(GeminiService service) {
-        ServiceStatus status = serviceStatuses.get(service);
-        if (status != null) {
-            status.recordError();
-            
-            int errorThreshold = plugin.getConfig().getInt("api.failover.error_threshold", 5);
-            long recoveryTime = plugin.getConfig().getLong("api.failover.recovery_time", 300000);
-            
-            if (status.errorCount >= errorThreshold) {
-                status.disabledUntil = System.currentTimeMillis() + recoveryTime;
-                plugin.debug("API节点暂时禁用: " + service.getEndpointInfo() + 
-                    ", 将在 " + (recoveryTime / 1000) + " 秒后重试");
+    /**
+     * 随机取两个可用节点，选择 平均耗时 × (进行中请求数 + 1) / 权重 较小的一个。
+     * 还没有耗时样本的节点视为最快，让新节点先获得流量
+     */
+    private GeminiService selectLeastLatencyService(List<GeminiService> availableServices) {
+        int size = availableServices.size();
+        if (size == 1) {
+            return availableServices.get(0);
+        }
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        GeminiService a = availableServices.get(first);
+        GeminiService b = availableServices.get(second);
+        return latencyScore(a) <= latencyScore(b) ? a : b;
+    }
+
+    private double latencyScore(GeminiService service) {
+        double ewma = service.getLatencyEwma();
+        if (ewma < 0) {
+            return 0;
+        }
+        return ewma * (service.getInFlightCount() + 1) / Math.max(1, service.getWeight());
+    }
+
+    /**
+     * 跟随正在进行的相同请求，拿到结果后各自记录历史并发送给自己
+     */
+    private void attachToFlight(Player player, String message, Optional<Persona> persona,
+                                CompletableFuture<String> flight) {
+        flight.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                delivery.send(player, throwable.getMessage());
+                return;
             }
+            recordExchange(player.getName(), message, response);
+            deliverResponse(player, persona, response);
+        });
+    }
+
+    /**
+     * 发送请求，启用对冲时主请求超过延迟仍未返回就向另一个节点再发一次，
+     * 先成功的回答胜出，另一个请求被取消。流式节点已经开始向玩家输出，不做对冲。
+     * 两个请求都失败时以主请求的错误结束
+     */
+    private CompletableFuture<Answer> sendHedged(ChatRequest request, GeminiService primary,
+                                                 Consumer<String> segmentConsumer) {
+        CompletableFuture<String> first = primary.sendMessage(
+            request.history, request.message, request.persona, segmentConsumer);
+        if (!hedger.isEnabled() || primary.isStreaming()) {
+            return first.thenApply(response -> new Answer(primary, response));
         }
+        hedger.recordPrimary();
+
+        CompletableFuture<Answer> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<Throwable> primaryError = new AtomicReference<>();
+        AtomicReference<CompletableFuture<String>> second = new AtomicReference<>();
+
+        first.whenComplete((response, throwable) -> {
+            if (throwable == null) {
+                result.complete(new Answer(primary, response));
+                return;
+            }
+            primaryError.set(throwable);
+            if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(throwable);
+            }
+        });
+
+        Runnable hedgeTask = () -> {
+            if (result.isDone()) {
+                return;
+            }
+            // 主请求已经失败时不再发起对冲，交给重试流程
+            int count;
+            do {
+                count = pending.get();
+                if (count == 0) {
+                    return;
+                }
+            } while (!pending.compareAndSet(count, count + 1));
+            GeminiService backup = result.isDone() ? null : selectHedgeService(primary);
+            if (backup == null) {
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(primaryError.get());
+                }
+                return;
+            }
+
+            plugin.debug("主请求超时未返回，对冲到节点: " + backup.getEndpointInfo());
+            CompletableFuture<String> hedge = backup.sendMessage(
+                request.history, request.message, request.persona, null);
+            second.set(hedge);
+            hedge.whenComplete((response, throwable) -> {
+                if (throwable == null) {
+                    if (result.complete(new Answer(backup, response))) {
+                        hedger.recordWin();
+                    }
+                    return;
+                }
+                if (!(throwable instanceof CancellationException)) {
+                    plugin.debug("对冲请求失败 [" + backup.getEndpointInfo() + "]: " + throwable.getMessage());
+                }
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(primaryError.get());
+                }
+            });
+            if (result.isDone()) {
+                hedge.cancel(true);
+            }
+        };
+        ScheduledFuture<?> timer = scheduleHedge(hedgeTask, hedger.getDelay(primary));
+
+        // 结果确定后取消计时和落后的请求
+        result.whenComplete((answer, throwable) -> {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            first.cancel(true);
+            CompletableFuture<String> hedge = second.get();
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        });
+        return result;
     }
 
-    private void sendMessageWithRetry(Player player, String message, Optional<Persona> persona, 
-                                    GeminiService service, int retryCount) {
+    /**
+     * 计时线程已关闭（插件重载）时不做对冲，只等待已经发出的主请求，返回 null
+     */
+    private ScheduledFuture<?> scheduleHedge(Runnable hedgeTask, long delay) {
+        try {
+            return executor.schedule(hedgeTask, delay);
+        } catch (RejectedExecutionException e) {
+            plugin.debug("计时线程已关闭，不做对冲");
+            return null;
+        }
+    }
+
+    /**
+     * 占用对冲名额后从主节点以外的可用节点中按权重选出对冲节点，没有可用节点时归还名额
+     */
+    private GeminiService selectHedgeService(GeminiService primary) {
+        // 熔断器的半开探测名额最后申请，确定会发出对冲请求时才占用
+        if (!hedger.tryAcquire()) {
+            return null;
+        }
+        List<GeminiService> candidates = getAvailableServices();
+        candidates.remove(primary);
+        candidates.removeIf(service -> !service.hasCapacity() || !service.hasQuota());
+        while (!candidates.isEmpty()) {
+            GeminiService service = selectRandomService(candidates);
+            if (service.getCircuitBreaker().tryAcquire()) {
+                return service;
+            }
+            candidates.remove(service);
+        }
+        hedger.release();
+        return null;
+    }
+
+    private void sendMessageWithRetry(ChatRequest request, GeminiService service, int retryCount) {
+        Player player = request.player;
+        Optional<Persona> persona = request.persona;
         if (service == null) {
-            String error = String.format(configManager.getErrorFormat(), "没有可用的API节点");
-            player.sendMessage(error);
+            request.fail(String.format(configManager.getErrorFormat(), "没有可用的API节点"));
             return;
         }
 
-        int maxRetries = plugin.getConfig().getInt("api.failover.max_retries", 3);
-        long retryDelay = plugin.getConfig().getLong("api.failover.retry_delay", 1000);
+        int maxRetries = configManager.getSnapshot().getMaxRetries();
 
-        service.sendMessage(player.getName(), message, persona)
-            .thenAccept(response -> {
-                if (containsCommandSyntax(response)) {
-                    player.sendMessage(ChatColor.RED + "AI 回复包含不安全内容，已被过滤");
+        // 流式输出时逐段发送给玩家，已发送过内容的请求失败后不再重试
+        AtomicBoolean delivered = new AtomicBoolean(false);
+        AtomicBoolean filtered = new AtomicBoolean(false);
+        Consumer<String> segmentConsumer = service.isStreaming() ? segment -> {
+            if (filtered.get()) {
+                return;
+            }
+            if (containsCommandSyntax(segment)) {
+                filtered.set(true);
+                delivery.send(player, ChatColor.RED + "AI 回复包含不安全内容，已被过滤");
+                return;
+            }
+            delivered.set(true);
+            delivery.send(player, String.format(configManager.getResponseFormat(), segment));
+        } : null;
+
+        sendHedged(request, service, segmentConsumer)
+            .thenAccept(answer -> {
+                String response = answer.response;
+                if (filtered.get()) {
+                    request.failFollowers(ChatColor.RED + "AI 回复包含不安全内容，已被过滤");
                     return;
                 }
-                
-                // 成功响应，重置服务错误计数
-                ServiceStatus status = serviceStatuses.get(service);
-                if (status != null) {
-                    status.reset();
+                if (segmentConsumer == null && containsCommandSyntax(response)) {
+                    request.fail(ChatColor.RED + "AI 回复包含不安全内容，已被过滤");
+                    return;
                 }
                 
-                String formattedResponse = String.format(configManager.getResponseFormat(), response);
-                player.sendMessage(formattedResponse);
+                // 只有最终采用的回答写入历史记录
+                recordExchange(request.getPlayerId(), request.message, response);
+                
+                if (request.cacheKey != null) {
+                    responseCache.put(request.cacheKey, response);
+                }
+                request.complete(response);
                 
-                if (shouldBroadcast(player, persona)) {
+                if (segmentConsumer == null) {
+                    deliverResponse(player, persona, response);
+                } else if (shouldBroadcast(player, persona)) {
                     broadcastAnswer(player, response);
                 }
             })
             .exceptionally(throwable -> {
+                // 线程池已满，不算节点故障，也不再重试
+                if (ApiExecutor.isRejection(throwable)) {
+                    plugin.debug("请求队列已满，拒绝请求: " + player.getName());
+                    request.fail(String.format(configManager.getErrorFormat(), "AI 服务繁忙，请稍后再试"));
+                    return null;
+                }
+                
                 plugin.debug("API调用失败 [" + service.getEndpointInfo() + "]: " + throwable.getMessage());
-                handleServiceError(service);
                 
-                if (retryCount < maxRetries) {
-                    plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
-                        GeminiService nextService = selectApiService();
-                        if (nextService != null) {
-                            sendMessageWithRetry(player, message, persona, nextService, retryCount + 1);
-                        } else {
-                            String error = String.format(configManager.getErrorFormat(), "所有API节点不可用");
-                            player.sendMessage(error);
-                        }
-                    }, retryDelay / 50);
-                } else {
-                    String error = String.format(configManager.getErrorFormat(), "所有重试均失败");
-                    player.sendMessage(error);
+                if (filtered.get()) {
+                    request.failFollowers(ChatColor.RED + "AI 回复包含不安全内容，已被过滤");
+                    return null;
+                }
+                if (delivered.get()) {
+                    request.fail(String.format(configManager.getErrorFormat(), "回复中断"));
+                    return null;
                 }
+                
+                if (!ApiException.isRetryable(throwable)) {
+                    request.fail(String.format(configManager.getErrorFormat(), "AI 服务拒绝了请求"));
+                    return null;
+                }
+                if (retryCount >= maxRetries) {
+                    request.fail(String.format(configManager.getErrorFormat(), "所有重试均失败"));
+                    return null;
+                }
+                
+                // 重试在插件计时线程上调度，不占用服务器主线程
+                long delay = retryDelay(retryCount, ApiException.getRetryAfterMillis(throwable));
+                plugin.debug("将在 " + delay + "ms 后第 " + (retryCount + 1) + " 次重试: " + player.getName());
+                scheduleRetry(request, retryCount + 1, delay);
                 return null;
             });
     }
 
-    private boolean checkRateLimit(String playerId) {
-        int rateLimit = configManager.getConfig().getInt("security.limits.rate_limit", 5);
-        long oneMinute = 60000L;
-        
-        List<Long> times = requestTimes.computeIfAbsent(playerId, k -> new ArrayList<>());
-        long now = System.currentTimeMillis();
-        
-        // 清理旧的记录
-        times.removeIf(time -> now - time > oneMinute);
-        
-        // 检查是否超过限制
-        if (times.size() >= rateLimit) {
-            return false;
+    /**
+     * 安排一次重试。重载后交给新的聊天管理器，计时线程已关闭时直接结束请求
+     */
+    private void scheduleRetry(ChatRequest request, int retryCount, long delay) {
+        ChatManager current = plugin.getChatManager();
+        ChatManager target = closed && current != null ? current : this;
+        try {
+            target.executor.schedule(() -> target.retry(request, retryCount), delay);
+        } catch (RejectedExecutionException e) {
+            plugin.debug("计时线程已关闭，放弃重试: " + request.getPlayerId());
+            request.fail(String.format(configManager.getErrorFormat(), "AI 服务繁忙，请稍后再试"));
+        }
+    }
+
+    private void retry(ChatRequest request, int retryCount) {
+        if (closed) {
+            // 等待期间插件已重载，改用新的节点和线程池
+            ChatManager current = plugin.getChatManager();
+            if (current != null && current != this) {
+                current.retry(request, retryCount);
+                return;
+            }
+        }
+        GeminiService nextService = selectApiService();
+        if (nextService != null) {
+            sendMessageWithRetry(request, nextService, retryCount);
+        } else {
+            request.fail(String.format(configManager.getErrorFormat(), "所有API节点不可用"));
         }
+    }
+
+    /**
+     * 指数退避加全随机抖动：在 [0, min(最大延迟, 基础延迟 × 2^重试次数)] 中随机取值，
+     * 避免失败的请求同时重试。上游给出 Retry-After 时至少等待该时间，但不超过最大延迟
+     */
+    private long retryDelay(int retryCount, long retryAfter) {
+        long baseDelay = configManager.getSnapshot().getRetryDelay();
+        long maxDelay = configManager.getSnapshot().getMaxRetryDelay();
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(retryCount, 20));
+        long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+        if (retryAfter > delay) {
+            delay = Math.min(maxDelay, retryAfter);
+        }
+        return delay;
+    }
+
+    private void deliverResponse(Player player, Optional<Persona> persona, String response) {
+        String formattedResponse = String.format(configManager.getResponseFormat(), response);
+        delivery.send(player, formattedResponse);
         
-        // 添加新的请求时间
-        times.add(now);
-        return true;
+        if (shouldBroadcast(player, persona)) {
+            broadcastAnswer(player, response);
+        }
     }
 
+    /**
+     * 等待已记录的对话写入历史日志，未启用持久化时不做任何事
+     */
     public void saveAllHistory() {
-        // 如果需要持久化历史记录，可以在这里实现
+        conversations.flush();
         plugin.debug("保存所有对话历史");
     }
 
+    public List<GeminiService> getApiServices() {
+        return Collections.unmodifiableList(apiServices);
+    }
+
+    public ApiExecutor getExecutor() {
+        return executor;
+    }
+
+    public InFlightRequests getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    public RequestHedger getHedger() {
+        return hedger;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public DeliveryQueue getDelivery() {
+        return delivery;
+    }
+
+    public ConversationStore getConversations() {
+        return conversations;
+    }
+
+    public String getCompactionStats() {
+        return compactor.getStats();
+    }
+
+    public BroadcastRecipients getBroadcastRecipients() {
+        return broadcastRecipients;
+    }
+
+    /**
+     * 停止清理任务并发出队列中剩余的消息，等待进行中的请求完成后关闭线程池和所有节点的连接池。
+     * wait 为 false 时在异步任务中等待，不阻塞调用线程
+     */
+    public void shutdown(boolean wait) {
+        closed = true;
+        stopCleanupTask();
+        broadcastRecipients.stop();
+        delivery.stop();
+        // 重载时新的聊天管理器已经打开同一个日志目录，它等待这里关闭后再读取。
+        // 仍在进行的请求之后返回的回答由新的聊天管理器记录
+        conversations.close();
+        long timeout = plugin.getConfig().getLong("api.executor.shutdown_timeout", 5000);
+        Runnable closer = () -> {
+            executor.shutdown(timeout);
+            for (GeminiService service : apiServices) {
+                service.close();
+            }
+            plugin.debug("请求线程池和连接池已关闭");
+        };
+        
+        if (wait) {
+            closer.run();
+        } else {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, closer);
+        }
+    }
+
     public void stopCleanupTask() {
         if (cleanupTask != null) {
             cleanupTask.cancel();
@@ -474,11 +849,8 @@ public class ChatManager {
             long now = System.currentTimeMillis();
             
             try {
-                // 清理请求时间记录
-                requestTimes.entrySet().removeIf(entry -> {
-                    entry.getValue().removeIf(time -> now - time > 60000L);
-                    return entry.getValue().isEmpty();
-                });
+                // 清理限流计数
+                rateLimiter.cleanup();
                 
                 // 清理冷却时间记录
                 cooldowns.entrySet().removeIf(entry -> 
@@ -491,11 +863,12 @@ public class ChatManager {
                     }
                 }
                 
-                // 清理服务状态
-                for (ServiceStatus status : serviceStatuses.values()) {
-                    if (status.disabledUntil < now) {
-                        status.reset();
-                    }
+                // 不活跃或超出内存预算的对话移出内存
+                conversations.evictIdle();
+                
+                // 回收空闲连接
+                for (GeminiService service : apiServices) {
+                    service.evictIdleConnections();
                 }
                 
                 plugin.debug("执行定期清理任务");
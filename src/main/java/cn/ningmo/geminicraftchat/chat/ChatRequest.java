@@ -0,0 +1,66 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import cn.ningmo.geminicraftchat.history.Turn;
+import cn.ningmo.geminicraftchat.persona.Persona;
+import org.bukkit.entity.Player;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 一次玩家提问在重试和请求合并过程中共享的状态
+ */
+class ChatRequest {
+    final Player player;
+    final String message;
+    final Optional<Persona> persona;
+    // 提问时取出的历史记录，每次重试和对冲都附带同一份
+    final List<Turn> history;
+    // 可缓存时的回答缓存键，否则为 null
+    final String cacheKey;
+    // 作为合并请求的发起者时，其他玩家等待的最终结果，否则为 null
+    final CompletableFuture<String> flight;
+    private final DeliveryQueue delivery;
+
+    ChatRequest(Player player, String message, Optional<Persona> persona, List<Turn> history, String cacheKey,
+                CompletableFuture<String> flight, DeliveryQueue delivery) {
+        this.player = player;
+        this.message = message;
+        this.persona = persona;
+        this.history = history;
+        this.cacheKey = cacheKey;
+        this.flight = flight;
+        this.delivery = delivery;
+    }
+
+    String getPlayerId() {
+        return player.getName();
+    }
+
+    /**
+     * 请求最终成功，通知等待同一问题的其他玩家
+     */
+    void complete(String response) {
+        if (flight != null) {
+            flight.complete(response);
+        }
+    }
+
+    /**
+     * 请求最终失败，把发给玩家的提示同样交给等待的其他玩家
+     */
+    void fail(String playerMessage) {
+        delivery.send(player, playerMessage);
+        failFollowers(playerMessage);
+    }
+
+    /**
+     * 发起请求的玩家已经收到过提示时，只通知等待的其他玩家
+     */
+    void failFollowers(String playerMessage) {
+        if (flight != null) {
+            flight.completeExceptionally(new IllegalStateException(playerMessage));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import cn.ningmo.geminicraftchat.GeminiCraftChat;
+import net.md_5.bungee.api.chat.TextComponent;
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AI 回答和广播的发送队列。异步线程只负责入队，主线程按固定间隔取出，
+ * 每次最多发送 budget 条，同一玩家的多条消息用换行连接后作为一个聊天包发送，已离线的玩家直接丢弃
+ */
+public class DeliveryQueue {
+    private final GeminiCraftChat plugin;
+    private final boolean enabled;
+    private final long interval;
+    private final int budget;
+    private final Queue<Delivery> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // stop 与异步线程中的 send 可能同时发送，统计需要原子更新
+    private final LongAdder totalWait = new LongAdder();
+    private final AtomicLong maxWait = new AtomicLong();
+    private volatile long lastDrainNanos;
+    private volatile BukkitTask task;
+    private volatile boolean stopped;
+
+    private static final class Delivery {
+        final Player player;
+        final String message;
+        final long enqueuedAt;
+
+        Delivery(Player player, String message) {
+            this.player = player;
+            this.message = message;
+            this.enqueuedAt = System.currentTimeMillis();
+        }
+    }
+
+    public DeliveryQueue(GeminiCraftChat plugin) {
+        this.plugin = plugin;
+        this.enabled = plugin.getConfig().getBoolean("chat.delivery.enabled", true);
+        this.interval = Math.max(1, plugin.getConfig().getLong("chat.delivery.interval", 1));
+        this.budget = Math.max(1, plugin.getConfig().getInt("chat.delivery.budget", 100));
+    }
+
+    public void start() {
+        if (enabled && task == null) {
+            task = plugin.getServer().getScheduler().runTaskTimer(plugin, () -> drain(budget), 1L, interval);
+        }
+    }
+
+    /**
+     * 停止定时发送并在当前线程发出剩余消息，之后的消息直接发送
+     */
+    public void stop() {
+        stopped = true;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        drain(Integer.MAX_VALUE);
+    }
+
+    public void send(Player player, String message) {
+        if (!enabled || stopped) {
+            player.sendMessage(message);
+            return;
+        }
+        queue.add(new Delivery(player, message));
+        depth.incrementAndGet();
+        // 入队后再检查一次：与 stop 同时进行时要么 stop 的最后一次发送能取到这条消息，
+        // 要么这里能看到已停止并自己发出，不会留在队列中
+        if (stopped) {
+            drain(Integer.MAX_VALUE);
+        }
+    }
+
+    private void drain(int limit) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        Map<Player, List<String>> batches = new LinkedHashMap<>();
+        int taken = 0;
+        Delivery delivery;
+        while (taken < limit && (delivery = queue.poll()) != null) {
+            depth.decrementAndGet();
+            taken++;
+            if (!delivery.player.isOnline()) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            long wait = now - delivery.enqueuedAt;
+            totalWait.add(wait);
+            maxWait.accumulateAndGet(wait, Math::max);
+            batches.computeIfAbsent(delivery.player, k -> new ArrayList<>()).add(delivery.message);
+        }
+        if (taken == 0) {
+            return;
+        }
+
+        for (Map.Entry<Player, List<String>> batch : batches.entrySet()) {
+            List<String> messages = batch.getValue();
+            if (messages.size() == 1) {
+                batch.getKey().sendMessage(messages.get(0));
+            } else {
+                // sendMessage(String[]) 仍然每条发一个包，合并成一个组件只发一次。每行重置格式，颜色不会延续到下一条
+                batch.getKey().spigot().sendMessage(
+                    TextComponent.fromLegacyText(String.join("\n" + ChatColor.RESET, messages)));
+            }
+            delivered.addAndGet(messages.size());
+        }
+        lastDrainNanos = System.nanoTime() - start;
+    }
+
+    public String getStats() {
+        long count = delivered.get();
+        return String.format("%s, 排队 %d, 已发送 %d, 已丢弃 %d, 平均等待 %dms, 最长等待 %dms, 上次发送耗时 %.2fms",
+            enabled ? "已启用" : "未启用", depth.get(), count, dropped.get(),
+            count > 0 ? totalWait.sum() / count : 0, maxWait.get(), lastDrainNanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,82 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import cn.ningmo.geminicraftchat.GeminiCraftChat;
+import cn.ningmo.geminicraftchat.api.GeminiService;
+import cn.ningmo.geminicraftchat.history.ConversationStore;
+import cn.ningmo.geminicraftchat.history.Turn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 在两次提问之间把玩家最早的几轮问答压缩成一段摘要，由成本最低的可用节点异步生成，
+ * 失败时保留原有记录，下次记录问答后再试
+ */
+class HistoryCompactor {
+    private final GeminiCraftChat plugin;
+    private final ConversationStore conversations;
+    private final Supplier<GeminiService> serviceSelector;
+    private final int maxLength;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    HistoryCompactor(GeminiCraftChat plugin, ConversationStore conversations, Supplier<GeminiService> serviceSelector) {
+        this.plugin = plugin;
+        this.conversations = conversations;
+        this.serviceSelector = serviceSelector;
+        this.maxLength = Math.max(20, plugin.getConfig().getInt("chat.history.summary.max_length", 200));
+    }
+
+    /**
+     * 玩家的历史记录需要压缩时发起摘要请求，不等待结果
+     */
+    void maybeCompact(String playerId) {
+        ConversationStore.Compaction compaction = conversations.beginCompaction(playerId);
+        if (compaction == null) {
+            return;
+        }
+        GeminiService service = serviceSelector.get();
+        if (service == null) {
+            compaction.abort();
+            return;
+        }
+
+        plugin.debug("压缩历史记录 [" + playerId + "]: " + compaction.getTurns().size() + " 条消息, 节点 "
+            + service.getEndpointInfo());
+        service.sendPrompt(buildPrompt(compaction)).whenComplete((summary, throwable) -> {
+            if (throwable != null || summary == null || summary.trim().isEmpty()) {
+                compaction.abort();
+                failed.incrementAndGet();
+                plugin.debug("生成历史摘要失败 [" + playerId + "]: "
+                    + (throwable != null ? throwable.getMessage() : "空回答"));
+                return;
+            }
+            String text = summary.trim();
+            // 模型不一定遵守字数要求，超出较多时截断
+            if (text.length() > maxLength * 2) {
+                text = text.substring(0, maxLength * 2);
+            }
+            compaction.complete(text);
+            completed.incrementAndGet();
+        });
+    }
+
+    private String buildPrompt(ConversationStore.Compaction compaction) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("请把下面的对话压缩成一段不超过 ").append(maxLength)
+            .append(" 字的摘要，保留玩家的身份、偏好和尚未解决的问题，只输出摘要本身。\n\n");
+        if (compaction.getPreviousSummary() != null) {
+            prompt.append(compaction.getPreviousSummary()).append("\n\n");
+        }
+        prompt.append("对话：\n");
+        for (Turn turn : compaction.getTurns()) {
+            prompt.append(turn.getRole() == Turn.Role.USER ? "玩家: " : "AI: ")
+                .append(turn.getContent()).append('\n');
+        }
+        return prompt.toString();
+    }
+
+    String getStats() {
+        return String.format("已压缩 %d 次, 失败 %d 次", completed.get(), failed.get());
+    }
+}
@@ -0,0 +1,31 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 相同问题的请求合并：同一问题已有请求在进行时，后来的玩家直接等待它的结果
+ */
+public class InFlightRequests {
+    private final Map<String, CompletableFuture<String>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * 已有相同请求在进行时返回它的 Future，否则登记 flight 由调用方发起请求并返回 null
+     */
+    public CompletableFuture<String> attachOrLead(String key, CompletableFuture<String> flight) {
+        CompletableFuture<String> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return existing;
+        }
+        flight.whenComplete((response, throwable) -> flights.remove(key, flight));
+        return null;
+    }
+
+    public String getStats() {
+        return String.format("进行中 %d, 已合并 %d", flights.size(), coalescedCount.get());
+    }
+}
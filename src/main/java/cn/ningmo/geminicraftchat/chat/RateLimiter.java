@@ -0,0 +1,101 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按玩家的滑动窗口限流，每个玩家只占用一个 AtomicLong：
+ * 高 32 位为分钟窗口编号，中间 16 位为上一窗口请求数，低 16 位为当前窗口请求数。
+ * 最近一分钟的请求数按 上一窗口 × 未过去的比例 + 当前窗口 估算，检查时不分配内存
+ */
+public class RateLimiter {
+    private static final long WINDOW = 60000L;
+    private static final long COUNT_MASK = 0xFFFFL;
+    private static final String GROUP_PERMISSION = "gcc.ratelimit.";
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final int defaultLimit;
+    private final String[] groupPermissions;
+    private final int[] groupLimits;
+
+    public RateLimiter(FileConfiguration config) {
+        this.defaultLimit = config.getInt("security.limits.rate_limit", 5);
+        ConfigurationSection groups = config.getConfigurationSection("security.limits.rate_limit_groups");
+        if (groups == null) {
+            this.groupPermissions = new String[0];
+            this.groupLimits = new int[0];
+            return;
+        }
+        String[] names = groups.getKeys(false).toArray(new String[0]);
+        this.groupPermissions = new String[names.length];
+        this.groupLimits = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            groupPermissions[i] = GROUP_PERMISSION + names[i];
+            groupLimits[i] = groups.getInt(names[i], defaultLimit);
+        }
+    }
+
+    /**
+     * 玩家拥有 gcc.ratelimit.<组名> 权限时使用该组的限制，属于多个组时取最宽松的，0 表示不限制
+     */
+    int getLimit(Player player) {
+        int limit = -1;
+        for (int i = 0; i < groupPermissions.length; i++) {
+            if (player.hasPermission(groupPermissions[i])) {
+                if (groupLimits[i] <= 0) {
+                    return 0;
+                }
+                limit = Math.max(limit, groupLimits[i]);
+            }
+        }
+        return limit >= 0 ? limit : defaultLimit;
+    }
+
+    /**
+     * 未超过限制时记录一次请求并返回 true
+     */
+    public boolean tryAcquire(Player player) {
+        int limit = getLimit(player);
+        if (limit <= 0) {
+            return true;
+        }
+        AtomicLong counter = counters.get(player.getName());
+        if (counter == null) {
+            counter = counters.computeIfAbsent(player.getName(), k -> new AtomicLong());
+        }
+
+        long now = System.currentTimeMillis();
+        long window = now / WINDOW;
+        double remaining = 1.0 - (now % WINDOW) / (double) WINDOW;
+        while (true) {
+            long state = counter.get();
+            long stateWindow = state >>> 32;
+            long previous = (state >>> 16) & COUNT_MASK;
+            long current = state & COUNT_MASK;
+            if (stateWindow != window) {
+                previous = stateWindow == window - 1 ? current : 0;
+                current = 0;
+            }
+            if (previous * remaining + current >= limit) {
+                return false;
+            }
+            long next = (window << 32) | (previous << 16) | Math.min(current + 1, COUNT_MASK);
+            if (counter.compareAndSet(state, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 清理两个窗口内没有请求的玩家
+     */
+    public void cleanup() {
+        long window = System.currentTimeMillis() / WINDOW;
+        counters.values().removeIf(counter -> window - (counter.get() >>> 32) >= 2);
+    }
+}
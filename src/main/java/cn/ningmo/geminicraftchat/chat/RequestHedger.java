@@ -0,0 +1,74 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import cn.ningmo.geminicraftchat.api.GeminiService;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对冲请求的策略：主请求超过延迟仍未返回时向另一个节点再发一次。
+ * 对冲请求数不超过主请求数的 max_ratio，避免配额消耗翻倍
+ */
+public class RequestHedger {
+    private final boolean enabled;
+    private final long delay;
+    private final boolean useP95;
+    private final double maxRatio;
+    private final AtomicLong primaryCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    public RequestHedger(FileConfiguration config) {
+        this.enabled = config.getBoolean("api.hedge.enabled", false);
+        this.delay = Math.max(100, config.getLong("api.hedge.delay", 3000));
+        this.useP95 = config.getBoolean("api.hedge.use_p95", true);
+        this.maxRatio = config.getDouble("api.hedge.max_ratio", 0.1);
+    }
+
+    public boolean isEnabled() {
+        return enabled && maxRatio > 0;
+    }
+
+    /**
+     * 节点有足够的耗时样本时使用它的 p95，否则使用配置的固定延迟
+     */
+    long getDelay(GeminiService service) {
+        long p95 = useP95 ? service.getLatencyP95() : -1;
+        return p95 > 0 ? p95 : delay;
+    }
+
+    void recordPrimary() {
+        primaryCount.incrementAndGet();
+    }
+
+    /**
+     * 对冲比例未超过上限时占用一次对冲名额
+     */
+    boolean tryAcquire() {
+        while (true) {
+            long hedges = hedgeCount.get();
+            if (hedges + 1 > primaryCount.get() * maxRatio) {
+                return false;
+            }
+            if (hedgeCount.compareAndSet(hedges, hedges + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 占用名额后没有发出对冲请求时归还
+     */
+    void release() {
+        hedgeCount.decrementAndGet();
+    }
+
+    void recordWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    public String getStats() {
+        return String.format("%s, 主请求 %d, 对冲 %d (上限 %.0f%%), 对冲胜出 %d",
+            isEnabled() ? "已启用" : "未启用", primaryCount.get(), hedgeCount.get(), maxRatio * 100, hedgeWins.get());
+    }
+}
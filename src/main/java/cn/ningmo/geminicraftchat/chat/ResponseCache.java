@@ -0,0 +1,132 @@
+package cn.ningmo.geminicraftchat.chat;
+
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无状态问题的精确匹配回答缓存，按 人设 + 规范化后的问题 作为键，
+ * 容量超出时淘汰最久未使用的条目，过期条目在读取时清除
+ */
+public class ResponseCache {
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttl;
+    private final Set<String> personas;
+    private final Set<String> ignoreHistoryPersonas;
+    private final LinkedHashMap<String, CachedResponse> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class CachedResponse {
+        final String response;
+        final long expiresAt;
+
+        CachedResponse(String response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public ResponseCache(FileConfiguration config) {
+        this.enabled = config.getBoolean("chat.response_cache.enabled", false);
+        this.maxEntries = Math.max(1, config.getInt("chat.response_cache.max_entries", 256));
+        this.ttl = config.getLong("chat.response_cache.ttl", 600000);
+        this.personas = new HashSet<>(config.getStringList("chat.response_cache.personas"));
+        this.ignoreHistoryPersonas = new HashSet<>(config.getStringList("chat.response_cache.ignore_history"));
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 返回缓存键，不适用缓存时返回 null。
+     * 只有玩家没有历史记录，或人设配置为忽略历史记录时才使用缓存
+     */
+    public String keyFor(String personaKey, String question, boolean hasHistory) {
+        if (!enabled || !personas.contains(personaKey)) {
+            return null;
+        }
+        if (hasHistory && !ignoreHistoryPersonas.contains(personaKey)) {
+            return null;
+        }
+        return personaKey + '\u0000' + normalizeQuestion(question);
+    }
+
+    public String get(String key) {
+        synchronized (entries) {
+            CachedResponse entry = entries.get(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.response;
+        }
+    }
+
+    public void put(String key, String response) {
+        synchronized (entries) {
+            entries.put(key, new CachedResponse(response, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public String getStats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return String.format("%s, 条目 %d / %d, 命中 %d, 未命中 %d, 淘汰 %d",
+            enabled ? "已启用" : "未启用", size, maxEntries, hits.get(), misses.get(), evictions.get());
+    }
+
+    /**
+     * 去掉首尾空白和句末标点，合并连续空白并转为小写
+     */
+    static String normalizeQuestion(String question) {
+        String text = question.trim().toLowerCase(Locale.ROOT);
+        int end = text.length();
+        while (end > 0 && "?？!！.。~～".indexOf(text.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        StringBuilder normalized = new StringBuilder(end);
+        boolean space = false;
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            space = false;
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+}
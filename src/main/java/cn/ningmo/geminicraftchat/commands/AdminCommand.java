@@ -1,6 +1,8 @@
 package cn.ningmo.geminicraftchat.commands;
 
 import cn.ningmo.geminicraftchat.GeminiCraftChat;
+import cn.ningmo.geminicraftchat.api.GeminiService;
+import cn.ningmo.geminicraftchat.chat.ChatManager;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -33,6 +35,9 @@ public class AdminCommand implements CommandExecutor {
             case "debug":
                 handleDebug(sender);
                 break;
+            case "stats":
+                handleStats(sender);
+                break;
             default:
                 sendHelpMessage(sender);
                 break;
@@ -61,15 +66,60 @@ public class AdminCommand implements CommandExecutor {
         boolean newState = !plugin.isDebugEnabled();
         plugin.getConfig().set("debug", newState);
         plugin.saveConfig();
+        // 重新生成配置快照使开关生效
+        plugin.getConfigManager().loadConfig();
         
         String status = newState ? "启用" : "禁用";
         sender.sendMessage(ChatColor.GREEN + "调试模式已" + status);
         plugin.getLogger().info("调试模式已" + status);
     }
 
+    private void handleStats(CommandSender sender) {
+        ChatManager chatManager = plugin.getChatManager();
+        if (chatManager == null) {
+            sender.sendMessage(ChatColor.RED + "聊天管理器未初始化");
+            return;
+        }
+
+        sender.sendMessage(ChatColor.GREEN + "=== 请求线程池 ===");
+        sender.sendMessage(ChatColor.GRAY + chatManager.getExecutor().getStats());
+        sender.sendMessage(ChatColor.GREEN + "=== 对冲请求 ===");
+        sender.sendMessage(ChatColor.GRAY + chatManager.getHedger().getStats());
+        sender.sendMessage(ChatColor.GREEN + "=== 回答缓存 ===");
+        sender.sendMessage(ChatColor.GRAY + chatManager.getResponseCache().getStats());
+        sender.sendMessage(ChatColor.GREEN + "=== 请求合并 ===");
+        sender.sendMessage(ChatColor.GRAY + chatManager.getInFlightRequests().getStats());
+        sender.sendMessage(ChatColor.GREEN + "=== 消息投递 ===");
+        sender.sendMessage(ChatColor.GRAY + chatManager.getDelivery().getStats());
+        sender.sendMessage(ChatColor.GREEN + "=== 对话历史 ===");
+        sender.sendMessage(ChatColor.GRAY + chatManager.getConversations().getStats());
+        sender.sendMessage(ChatColor.GRAY + "历史摘要: " + chatManager.getCompactionStats());
+        String logStats = chatManager.getConversations().getLogStats();
+        if (logStats != null) {
+            sender.sendMessage(ChatColor.GRAY + "历史日志: " + logStats);
+        }
+        sender.sendMessage(ChatColor.GREEN + "=== 广播接收者 ===");
+        sender.sendMessage(ChatColor.GRAY + chatManager.getBroadcastRecipients().getStats());
+        sender.sendMessage(ChatColor.GREEN + "=== API节点状态 ===");
+        for (GeminiService service : chatManager.getApiServices()) {
+            sender.sendMessage(ChatColor.YELLOW + service.getEndpointInfo() + ChatColor.GRAY + " - " + service.getPoolStats());
+            double ewma = service.getLatencyEwma();
+            sender.sendMessage(ChatColor.GRAY + "  " + service.getCircuitBreaker().getStats());
+            sender.sendMessage(ChatColor.GRAY + "  " + service.getConcurrencyStats());
+            if (service.getQuotaStats() != null) {
+                sender.sendMessage(ChatColor.GRAY + "  " + service.getQuotaStats());
+            }
+            sender.sendMessage(ChatColor.GRAY + String.format("  进行中 %d, 平均耗时 %s, p95 %s",
+                service.getInFlightCount(),
+                ewma < 0 ? "-" : Math.round(ewma) + "ms",
+                service.getLatencyP95() < 0 ? "-" : service.getLatencyP95() + "ms"));
+        }
+    }
+
     private void sendHelpMessage(CommandSender sender) {
         sender.sendMessage(ChatColor.GREEN + "=== GeminiCraftChat 后台命令 ===");
         sender.sendMessage(ChatColor.YELLOW + "/gccadmin reload " + ChatColor.GRAY + "- 重新加载配置文件");
         sender.sendMessage(ChatColor.YELLOW + "/gccadmin debug " + ChatColor.GRAY + "- 切换调试模式");
+        sender.sendMessage(ChatColor.YELLOW + "/gccadmin stats " + ChatColor.GRAY + "- 查看API节点运行状态");
     }
 } 
\ No newline at end of file
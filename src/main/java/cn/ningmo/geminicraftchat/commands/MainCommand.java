@@ -12,11 +12,9 @@ import java.util.List;
 
 public class MainCommand implements CommandExecutor {
     private final GeminiCraftChat plugin;
-    private final ChatManager chatManager;
 
     public MainCommand(GeminiCraftChat plugin) {
         this.plugin = plugin;
-        this.chatManager = plugin.getChatManager();
     }
 
     @Override
@@ -27,6 +25,8 @@ public class MainCommand implements CommandExecutor {
         }
 
         Player player = (Player) sender;
+        // 重载后聊天管理器会被替换，每次都重新获取
+        ChatManager chatManager = plugin.getChatManager();
 
         if (args.length == 0) {
             sendHelpMessage(player);
@@ -62,7 +62,7 @@ public class MainCommand implements CommandExecutor {
                     player.sendMessage(ChatColor.RED + "用法: /gcc persona <list|switch> [人设名称]");
                     return true;
                 }
-                handlePersonaCommand(player, args);
+                handlePersonaCommand(player, chatManager, args);
                 break;
 
             case "debug":
@@ -84,7 +84,7 @@ public class MainCommand implements CommandExecutor {
         return true;
     }
 
-    private void handlePersonaCommand(Player player, String[] args) {
+    private void handlePersonaCommand(Player player, ChatManager chatManager, String[] args) {
         switch (args[1].toLowerCase()) {
             case "list":
                 List<String> personas = chatManager.getAvailablePersonas();
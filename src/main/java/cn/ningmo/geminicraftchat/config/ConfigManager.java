@@ -4,10 +4,12 @@ import org.bukkit.configuration.file.FileConfiguration;
 import cn.ningmo.geminicraftchat.GeminiCraftChat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class ConfigManager {
     private final GeminiCraftChat plugin;
     private FileConfiguration config;
+    private volatile ConfigSnapshot snapshot;
 
     public ConfigManager(GeminiCraftChat plugin) {
         this.plugin = plugin;
@@ -16,39 +18,54 @@ public class ConfigManager {
     public void loadConfig() {
         plugin.saveDefaultConfig();
         this.config = plugin.getConfig();
+        this.snapshot = new ConfigSnapshot(config);
     }
 
     public FileConfiguration getConfig() {
         return config;
     }
 
+    /**
+     * 当前配置的不可变快照，配置加载前返回 null
+     */
+    public ConfigSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     public String getDefaultTrigger() {
-        return config.getString("chat.trigger", "ai");
+        return snapshot.getTrigger();
     }
 
-    public List<String> getTriggerWords() {
-        List<String> words = config.getStringList("chat.trigger_words");
-        return words != null ? words : new ArrayList<>();
+    public Set<String> getTriggerWords() {
+        return snapshot.getTriggerWords();
     }
 
     public int getMaxHistory() {
-        return config.getInt("chat.max_history", 10);
+        return snapshot.getMaxHistory();
     }
 
     public String getThinkingFormat() {
-        return config.getString("chat.format.thinking", "§7[AI] §f正在思考中...");
+        return snapshot.getThinkingFormat();
     }
 
     public String getResponseFormat() {
-        return config.getString("chat.format.response", "§7[AI] §f%s");
+        return snapshot.getResponseFormat();
     }
 
     public String getErrorFormat() {
-        return config.getString("chat.format.error", "§c[AI] 发生错误：%s");
+        return snapshot.getErrorFormat();
+    }
+
+    public int getMaxResponseLength() {
+        return snapshot.getMaxResponseLength();
+    }
+
+    public int getMaxResponseBody() {
+        return snapshot.getMaxResponseBody();
     }
 
     public long getCooldown() {
-        return config.getLong("chat.cooldown", 10000);
+        return snapshot.getCooldown();
     }
 
     public boolean isFilterEnabled() {
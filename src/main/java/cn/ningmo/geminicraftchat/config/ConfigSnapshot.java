@@ -0,0 +1,227 @@
+package cn.ningmo.geminicraftchat.config;
+
+import cn.ningmo.geminicraftchat.security.CommandMatcher;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 每次加载配置时生成的不可变快照，聊天热路径只读取这里的字段，
+ * 不再反复查询 FileConfiguration。重载时整体替换
+ */
+public final class ConfigSnapshot {
+    private final boolean debug;
+
+    private final String trigger;
+    private final Set<String> triggerWords;
+    private final Set<String> clearMemoryCommands;
+    private final Set<String> switchPersonaCommands;
+    private final Set<String> listPersonasCommands;
+    private final Set<String> helpCommands;
+    private final FirstWordDispatcher dispatcher;
+
+    private final String thinkingFormat;
+    private final String responseFormat;
+    private final String errorFormat;
+    private final int maxHistory;
+    private final long cooldown;
+    private final boolean coalesceRequests;
+
+    private final int maxMessageLength;
+    private final int maxResponseLength;
+    private final int maxResponseBody;
+    private final boolean commandCheckEnabled;
+    private final CommandMatcher commandMatcher;
+
+    private final boolean broadcastEnabled;
+    private final boolean broadcastToPlayers;
+    private final boolean broadcastToConsole;
+    private final MessageTemplate questionFormat;
+    private final MessageTemplate answerFormat;
+    private final Set<String> broadcastIgnorePersonas;
+
+    private final String apiMode;
+    private final int maxRetries;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+
+    ConfigSnapshot(FileConfiguration config) {
+        this.debug = config.getBoolean("debug", false);
+
+        this.trigger = config.getString("chat.trigger", "ai").toLowerCase(Locale.ROOT);
+        this.triggerWords = lowerCaseSet(config.getStringList("chat.trigger_words"));
+        this.clearMemoryCommands = toSet(config.getStringList("commands.chinese.clear_memory"));
+        this.switchPersonaCommands = toSet(config.getStringList("commands.chinese.switch_persona"));
+        this.listPersonasCommands = toSet(config.getStringList("commands.chinese.list_personas"));
+        this.helpCommands = toSet(config.getStringList("commands.chinese.help"));
+        this.dispatcher = new FirstWordDispatcher(trigger, triggerWords, clearMemoryCommands,
+            switchPersonaCommands, listPersonasCommands, helpCommands);
+
+        this.thinkingFormat = config.getString("chat.format.thinking", "§7[AI] §f正在思考中...");
+        this.responseFormat = config.getString("chat.format.response", "§7[AI] §f%s");
+        this.errorFormat = config.getString("chat.format.error", "§c[AI] 发生错误：%s");
+        this.maxHistory = config.getInt("chat.max_history", 10);
+        this.cooldown = config.getLong("chat.cooldown", 10000);
+        this.coalesceRequests = config.getBoolean("chat.coalesce_requests", true);
+
+        this.maxMessageLength = config.getInt("security.limits.max_message_length", 500);
+        this.maxResponseLength = config.getInt("security.limits.max_response_length", 1000);
+        this.maxResponseBody = config.getInt("security.limits.max_response_body", 65536);
+        this.commandCheckEnabled = config.getBoolean("security.command_check.enabled", true);
+        this.commandMatcher = CommandMatcher.build(
+            config.getStringList("security.command_check.blocked_commands"),
+            config.getStringList("security.command_check.blocked_keywords"));
+
+        this.broadcastEnabled = config.getBoolean("chat.broadcast.enabled", true);
+        this.broadcastToPlayers = config.getBoolean("chat.broadcast.to_players", true);
+        this.broadcastToConsole = config.getBoolean("chat.broadcast.to_console", true);
+        this.questionFormat = new MessageTemplate(
+            config.getString("chat.broadcast.format.question", "§8[AI] §7{player} §f问: §7{message}"));
+        this.answerFormat = new MessageTemplate(
+            config.getString("chat.broadcast.format.answer", "§8[AI] §7回答 §f{player}: §7{message}"));
+        this.broadcastIgnorePersonas = toSet(config.getStringList("chat.broadcast.ignore_personas"));
+
+        this.apiMode = config.getString("api.mode", "single").toLowerCase(Locale.ROOT);
+        this.maxRetries = config.getInt("api.failover.max_retries", 3);
+        this.retryDelay = Math.max(1, config.getLong("api.failover.retry_delay", 1000));
+        this.maxRetryDelay = Math.max(retryDelay, config.getLong("api.failover.max_retry_delay", 10000));
+    }
+
+    private static Set<String> toSet(List<String> values) {
+        return Collections.unmodifiableSet(new HashSet<>(values));
+    }
+
+    private static Set<String> lowerCaseSet(List<String> values) {
+        Set<String> set = new HashSet<>();
+        for (String value : values) {
+            set.add(value.toLowerCase(Locale.ROOT));
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public String getTrigger() {
+        return trigger;
+    }
+
+    public Set<String> getTriggerWords() {
+        return triggerWords;
+    }
+
+    public Set<String> getClearMemoryCommands() {
+        return clearMemoryCommands;
+    }
+
+    public Set<String> getSwitchPersonaCommands() {
+        return switchPersonaCommands;
+    }
+
+    public Set<String> getListPersonasCommands() {
+        return listPersonasCommands;
+    }
+
+    public Set<String> getHelpCommands() {
+        return helpCommands;
+    }
+
+    /**
+     * 按聊天消息首词分派触发词和中文命令
+     */
+    public FirstWordDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public String getThinkingFormat() {
+        return thinkingFormat;
+    }
+
+    public String getResponseFormat() {
+        return responseFormat;
+    }
+
+    public String getErrorFormat() {
+        return errorFormat;
+    }
+
+    public int getMaxHistory() {
+        return maxHistory;
+    }
+
+    public long getCooldown() {
+        return cooldown;
+    }
+
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    public int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    public int getMaxResponseLength() {
+        return maxResponseLength;
+    }
+
+    public int getMaxResponseBody() {
+        return maxResponseBody;
+    }
+
+    public boolean isCommandCheckEnabled() {
+        return commandCheckEnabled;
+    }
+
+    /**
+     * 由屏蔽命令和屏蔽关键词构建的匹配器
+     */
+    public CommandMatcher getCommandMatcher() {
+        return commandMatcher;
+    }
+
+    public boolean isBroadcastEnabled() {
+        return broadcastEnabled;
+    }
+
+    public boolean isBroadcastToPlayers() {
+        return broadcastToPlayers;
+    }
+
+    public boolean isBroadcastToConsole() {
+        return broadcastToConsole;
+    }
+
+    public MessageTemplate getQuestionFormat() {
+        return questionFormat;
+    }
+
+    public MessageTemplate getAnswerFormat() {
+        return answerFormat;
+    }
+
+    public Set<String> getBroadcastIgnorePersonas() {
+        return broadcastIgnorePersonas;
+    }
+
+    public String getApiMode() {
+        return apiMode;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public long getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+}
@@ -0,0 +1,132 @@
+package cn.ningmo.geminicraftchat.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 按聊天消息的第一个词分派：AI 触发词或中文命令。
+ * 在加载配置时构建为开放寻址的哈希表，查找时直接在原消息上计算首词的哈希，
+ * 不切分字符串也不分配对象。绝大多数普通聊天在首字符或长度检查时就被排除
+ */
+public final class FirstWordDispatcher {
+    public enum Action {
+        NONE,
+        AI_TRIGGER,
+        CLEAR_MEMORY,
+        SWITCH_PERSONA,
+        LIST_PERSONAS,
+        HELP
+    }
+
+    private final String[] keys;
+    private final Action[] actions;
+    private final int mask;
+    // 所有首词首字符的位图（小写后取低 10 位）
+    private final long[] firstChars = new long[16];
+    private final int minLength;
+    private final int maxLength;
+
+    FirstWordDispatcher(String trigger, Set<String> triggerWords, Set<String> clearMemory,
+                        Set<String> switchPersona, Set<String> listPersonas, Set<String> help) {
+        List<String> words = new ArrayList<>();
+        List<Action> wordActions = new ArrayList<>();
+        // 中文命令优先于触发词，后加入的覆盖先加入的
+        add(words, wordActions, trigger, Action.AI_TRIGGER);
+        for (String word : triggerWords) {
+            add(words, wordActions, word, Action.AI_TRIGGER);
+        }
+        for (String word : clearMemory) {
+            add(words, wordActions, word, Action.CLEAR_MEMORY);
+        }
+        for (String word : switchPersona) {
+            add(words, wordActions, word, Action.SWITCH_PERSONA);
+        }
+        for (String word : listPersonas) {
+            add(words, wordActions, word, Action.LIST_PERSONAS);
+        }
+        for (String word : help) {
+            add(words, wordActions, word, Action.HELP);
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(4, words.size() * 4) - 1) << 1;
+        this.keys = new String[capacity];
+        this.actions = new Action[capacity];
+        this.mask = capacity - 1;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            int slot = hash(word, word.length()) & mask;
+            while (keys[slot] != null && !keys[slot].equals(word)) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = word;
+            actions[slot] = wordActions.get(i);
+            char first = word.charAt(0);
+            firstChars[(first & 1023) >>> 6] |= 1L << (first & 63);
+            min = Math.min(min, word.length());
+            max = Math.max(max, word.length());
+        }
+        this.minLength = words.isEmpty() ? 1 : min;
+        this.maxLength = max;
+    }
+
+    private static void add(List<String> words, List<Action> wordActions, String word, Action action) {
+        if (word == null || word.isEmpty() || word.indexOf(' ') >= 0) {
+            return;
+        }
+        String key = word.toLowerCase(Locale.ROOT);
+        int existing = words.indexOf(key);
+        if (existing >= 0) {
+            wordActions.set(existing, action);
+            return;
+        }
+        words.add(key);
+        wordActions.add(action);
+    }
+
+    /**
+     * 返回消息第一个词（第一个空格之前的部分，忽略大小写）对应的动作
+     */
+    public Action dispatch(String message) {
+        if (message.isEmpty() || maxLength == 0) {
+            return Action.NONE;
+        }
+        char first = Character.toLowerCase(message.charAt(0));
+        if ((firstChars[(first & 1023) >>> 6] & (1L << (first & 63))) == 0) {
+            return Action.NONE;
+        }
+
+        // 首词长度超过最长的关键词时不必继续扫描
+        int limit = Math.min(message.length(), maxLength + 1);
+        int end = 0;
+        int hash = 0;
+        while (end < limit && message.charAt(end) != ' ') {
+            hash = 31 * hash + Character.toLowerCase(message.charAt(end));
+            end++;
+        }
+        if (end > maxLength || end < minLength) {
+            return Action.NONE;
+        }
+
+        int slot = hash & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (key.length() == end && message.regionMatches(true, 0, key, 0, end)) {
+                return actions[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return Action.NONE;
+    }
+
+    private static int hash(String word, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + Character.toLowerCase(word.charAt(i));
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,64 @@
+package cn.ningmo.geminicraftchat.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 预先拆分好的 {player}/{message} 消息模板，格式化时只做一次拼接
+ */
+public final class MessageTemplate {
+    private static final String PLAYER = "{player}";
+    private static final String MESSAGE = "{message}";
+
+    // 文本片段，null 位置为占位符，isMessage 标记是 {message} 还是 {player}
+    private final String[] parts;
+    private final boolean[] isMessage;
+    private final int literalLength;
+
+    public MessageTemplate(String pattern) {
+        List<String> partList = new ArrayList<>();
+        List<Boolean> messageList = new ArrayList<>();
+        int length = 0;
+        int start = 0;
+        while (start < pattern.length()) {
+            int player = pattern.indexOf(PLAYER, start);
+            int message = pattern.indexOf(MESSAGE, start);
+            int next = player < 0 ? message : message < 0 ? player : Math.min(player, message);
+            if (next < 0) {
+                break;
+            }
+            if (next > start) {
+                partList.add(pattern.substring(start, next));
+                messageList.add(false);
+                length += next - start;
+            }
+            boolean isMessagePlaceholder = next == message;
+            partList.add(null);
+            messageList.add(isMessagePlaceholder);
+            start = next + (isMessagePlaceholder ? MESSAGE.length() : PLAYER.length());
+        }
+        if (start < pattern.length()) {
+            partList.add(pattern.substring(start));
+            messageList.add(false);
+            length += pattern.length() - start;
+        }
+        this.parts = partList.toArray(new String[0]);
+        this.isMessage = new boolean[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            isMessage[i] = messageList.get(i);
+        }
+        this.literalLength = length;
+    }
+
+    public String format(String player, String message) {
+        StringBuilder builder = new StringBuilder(literalLength + player.length() + message.length());
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                builder.append(parts[i]);
+            } else {
+                builder.append(isMessage[i] ? message : player);
+            }
+        }
+        return builder.toString();
+    }
+}
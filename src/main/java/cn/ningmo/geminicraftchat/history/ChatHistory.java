@@ -0,0 +1,195 @@
+package cn.ningmo.geminicraftchat.history;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 单个玩家的对话历史，固定容量的环形缓冲区，写满后新的一问一答覆盖最旧的一问一答。
+ * 最早的消息可以被压缩成一段摘要后移出缓冲区。不活跃时整个历史可以被移出内存，移出后不再接受写入。
+ * 修改在锁内进行，读取不加锁：修改前后各递增一次版本号，读取前后版本号不同时重读
+ */
+public final class ChatHistory {
+    // 读取期间连续被写入打断的次数超过此值时改为加锁读取
+    private static final int MAX_OPTIMISTIC_READS = 4;
+
+    private final AtomicReferenceArray<Turn> ring;
+    private final int capacity;
+    // 奇数表示正在写入
+    private volatile long version;
+    // 累计写入的消息条数，对容量取模即下一条的位置
+    private volatile long written;
+    // 已经并入摘要的消息条数，序号小于它的消息不再返回
+    private volatile long compacted;
+    private volatile Turn summary;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // 已被移出内存，调用方需要重新获取
+    private boolean retired;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * 某一时刻的历史记录，turns 按时间顺序排列，第一条的序号为 start
+     */
+    public static final class Snapshot {
+        final List<Turn> turns;
+        final Turn summary;
+        final long start;
+
+        Snapshot(List<Turn> turns, Turn summary, long start) {
+            this.turns = turns;
+            this.summary = summary;
+            this.start = start;
+        }
+
+        public List<Turn> getTurns() {
+            return turns;
+        }
+
+        /**
+         * 较早对话的摘要，没有时为 null
+         */
+        public Turn getSummary() {
+            return summary;
+        }
+    }
+
+    /**
+     * @param maxExchanges 最多保留的问答轮数
+     */
+    public ChatHistory(int maxExchanges) {
+        this.capacity = Math.max(1, maxExchanges) * 2;
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * 追加一轮问答，两条消息总是一起写入和一起淘汰。已被移出内存时返回 false
+     */
+    public synchronized boolean append(String question, String answer) {
+        if (retired) {
+            return false;
+        }
+        long next = written;
+        version++;
+        ring.set((int) (next % capacity), new Turn(Turn.Role.USER, question));
+        ring.set((int) ((next + 1) % capacity), new Turn(Turn.Role.ASSISTANT, answer));
+        written = next + 2;
+        version++;
+        return true;
+    }
+
+    /**
+     * 标记为已移出内存并返回最终内容，之后的追加都会失败
+     */
+    synchronized Snapshot retire() {
+        retired = true;
+        return readUnchecked();
+    }
+
+    synchronized boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * 用新的摘要替换序号小于 end 的消息。摘要生成期间被环形缓冲区覆盖的消息已经不在，不受影响
+     */
+    public synchronized void compact(long end, String newSummary) {
+        version++;
+        if (end > compacted) {
+            compacted = Math.min(end, written);
+        }
+        summary = new Turn(Turn.Role.SYSTEM, newSummary);
+        version++;
+    }
+
+    /**
+     * 按时间顺序返回当前保留的消息，返回的列表不会再变化
+     */
+    public List<Turn> snapshot() {
+        return read().turns;
+    }
+
+    /**
+     * 当前保留的消息和摘要
+     */
+    public Snapshot read() {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+            long before = version;
+            if ((before & 1) != 0) {
+                continue;
+            }
+            Snapshot snapshot = readUnchecked();
+            if (version == before) {
+                return snapshot;
+            }
+        }
+        synchronized (this) {
+            return readUnchecked();
+        }
+    }
+
+    private Snapshot readUnchecked() {
+        long end = written;
+        long start = Math.max(compacted, end - capacity);
+        Turn[] turns = new Turn[(int) (end - start)];
+        for (int i = 0; i < turns.length; i++) {
+            turns[i] = ring.get((int) ((start + i) % capacity));
+        }
+        return new Snapshot(Collections.unmodifiableList(Arrays.asList(turns)), summary, start);
+    }
+
+    public boolean isEmpty() {
+        return written == 0;
+    }
+
+    /**
+     * 当前保留的消息条数，不含摘要
+     */
+    public int size() {
+        long end = written;
+        return (int) (end - Math.max(compacted, end - capacity));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * 粗略估算占用的堆内存字节数
+     */
+    long estimateBytes() {
+        Snapshot snapshot = read();
+        long bytes = 96 + capacity * 4L;
+        for (Turn turn : snapshot.turns) {
+            bytes += 56 + turn.getContent().length() * 2L;
+        }
+        if (snapshot.summary != null) {
+            bytes += 56 + snapshot.summary.getContent().length() * 2L;
+        }
+        return bytes;
+    }
+
+    boolean isCompacting() {
+        return compacting.get();
+    }
+
+    /**
+     * 同一时间只允许一个摘要任务，成功占用时返回 true，结束后调用 {@link #endCompaction}
+     */
+    boolean beginCompaction() {
+        return compacting.compareAndSet(false, true);
+    }
+
+    void endCompaction() {
+        compacting.set(false);
+    }
+}
@@ -0,0 +1,85 @@
+package cn.ningmo.geminicraftchat.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 不活跃玩家的对话历史，以 Deflate 压缩后的字节保存在内存中，玩家再次提问时还原
+ */
+final class CompressedHistory {
+    private final byte[] data;
+    private final long lastAccess;
+
+    private CompressedHistory(byte[] data, long lastAccess) {
+        this.data = data;
+        this.lastAccess = lastAccess;
+    }
+
+    static CompressedHistory compress(ChatHistory.Snapshot snapshot, long lastAccess) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            List<Turn> turns = snapshot.turns;
+            out.writeInt(turns.size());
+            for (Turn turn : turns) {
+                writeString(out, turn.getContent());
+            }
+            out.writeBoolean(snapshot.summary != null);
+            if (snapshot.summary != null) {
+                writeString(out, snapshot.summary.getContent());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+        return new CompressedHistory(bytes.toByteArray(), lastAccess);
+    }
+
+    /**
+     * 还原为可写入的历史记录，消息按一问一答成对保存
+     */
+    ChatHistory inflate(int maxExchanges) {
+        ChatHistory history = new ChatHistory(maxExchanges);
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            int count = in.readInt();
+            for (int i = 0; i + 1 < count; i += 2) {
+                history.append(readString(in), readString(in));
+            }
+            if (in.readBoolean()) {
+                history.compact(0, readString(in));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return history;
+    }
+
+    int size() {
+        return data.length;
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
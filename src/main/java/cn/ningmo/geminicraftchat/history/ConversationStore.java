@@ -0,0 +1,389 @@
+package cn.ningmo.geminicraftchat.history;
+
+import cn.ningmo.geminicraftchat.config.ConfigManager;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有API节点共用的对话历史，按玩家保存。
+ * 玩家切换到其他节点时上下文不会丢失，每段对话只保存一份。
+ * 请求中附带的历史记录按 token 预算从最新的问答往前截取，放不下的较早问答可以压缩成摘要。
+ * 启用持久化时每次修改都追加到 {@link HistoryLog}，重启后玩家再次提问时才从日志读取。
+ * 长时间不活跃或超出内存预算的对话移出内存：启用持久化时直接释放，之后从日志读取；
+ * 否则压缩后保存在内存中，压缩数据也超出预算时丢弃最久未使用的
+ */
+public class ConversationStore {
+    private static final String SUMMARY_PREFIX = "之前对话的摘要：";
+
+    private final ConfigManager configManager;
+    private final int tokenBudget;
+    private final boolean summaryEnabled;
+    // 未启用持久化时为 null
+    private final HistoryLog log;
+    private final long idleAfter;
+    private final long memoryBudget;
+    private final Map<String, ChatHistory> histories = new ConcurrentHashMap<>();
+    private final Map<String, CompressedHistory> compressed = new ConcurrentHashMap<>();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong offloaded = new AtomicLong();
+    private final AtomicLong restored = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long estimatedBytes;
+
+    /**
+     * 一次进行中的摘要任务，结束时必须调用 complete 或 abort 之一
+     */
+    public final class Compaction {
+        private final String playerId;
+        private final ChatHistory history;
+        private final List<Turn> turns;
+        private final String previousSummary;
+        private final long end;
+
+        Compaction(String playerId, ChatHistory history, List<Turn> turns, String previousSummary, long end) {
+            this.playerId = playerId;
+            this.history = history;
+            this.turns = turns;
+            this.previousSummary = previousSummary;
+            this.end = end;
+        }
+
+        /**
+         * 需要并入摘要的最早几轮问答
+         */
+        public List<Turn> getTurns() {
+            return turns;
+        }
+
+        /**
+         * 已有的摘要，没有时为 null
+         */
+        public String getPreviousSummary() {
+            return previousSummary;
+        }
+
+        public void complete(String summary) {
+            // 与 append 使用同一把锁：保留的轮数与日志中的顺序一致，已清除的历史不会写入摘要
+            synchronized (history) {
+                history.compact(end, SUMMARY_PREFIX + summary);
+                if (log != null && !history.isRetired()) {
+                    log.appendSummary(playerId, SUMMARY_PREFIX + summary, history.size() / 2);
+                }
+            }
+            history.endCompaction();
+        }
+
+        public void abort() {
+            history.endCompaction();
+        }
+    }
+
+    public ConversationStore(ConfigManager configManager, HistoryLog log) {
+        this.configManager = configManager;
+        this.log = log;
+        FileConfiguration config = configManager.getConfig();
+        this.tokenBudget = Math.max(0, config.getInt("chat.history.token_budget", 1500));
+        this.summaryEnabled = config.getBoolean("chat.history.summary.enabled", false);
+        this.idleAfter = Math.max(60000, config.getLong("chat.history.idle.after", 600000));
+        this.memoryBudget = Math.max(1024 * 1024, config.getLong("chat.history.idle.memory_budget", 16777216));
+    }
+
+    /**
+     * 请求中附带的历史记录：摘要（如果有）加上预算内最新的几轮问答，没有记录时返回空列表
+     */
+    public List<Turn> get(String playerId) {
+        ChatHistory history = find(playerId);
+        if (history == null) {
+            return Collections.emptyList();
+        }
+        ChatHistory.Snapshot snapshot = history.read();
+        Turn summary = snapshot.summary;
+        List<Turn> turns = snapshot.turns;
+
+        int first = 0;
+        if (tokenBudget > 0) {
+            // 从最新的一轮问答往前累加，超出预算的整轮丢弃
+            int used = summary != null ? summary.getTokens() + TokenEstimator.MESSAGE_OVERHEAD : 0;
+            first = turns.size();
+            while (first >= 2) {
+                int exchange = turns.get(first - 2).getTokens() + turns.get(first - 1).getTokens()
+                    + 2 * TokenEstimator.MESSAGE_OVERHEAD;
+                if (used + exchange > tokenBudget) {
+                    break;
+                }
+                used += exchange;
+                first -= 2;
+            }
+        }
+
+        if (summary == null) {
+            return first == 0 ? turns : turns.subList(first, turns.size());
+        }
+        List<Turn> result = new ArrayList<>(turns.size() - first + 1);
+        result.add(summary);
+        result.addAll(turns.subList(first, turns.size()));
+        return result;
+    }
+
+    /**
+     * 记录一轮问答，返回记录后该玩家保留的消息条数
+     */
+    public int record(String playerId, String question, String answer) {
+        // 环形缓冲区写满后自动覆盖最旧的一轮问答
+        ChatHistory history;
+        do {
+            history = find(playerId);
+            if (history == null) {
+                // 与 find 一样在 computeIfAbsent 内取出压缩数据，不会用空历史覆盖正在还原的对话
+                history = histories.computeIfAbsent(playerId, k -> {
+                    ChatHistory inflated = inflate(k);
+                    return inflated != null ? inflated : new ChatHistory(configManager.getMaxHistory());
+                });
+            }
+            // 取到的历史恰好被移出内存或清除时重新获取
+        } while (!append(playerId, history, question, answer));
+        return history.size();
+    }
+
+    /**
+     * 在历史记录的锁内写入内存和日志，清除时先 retire 再写清除记录，日志中问答不会出现在清除之后
+     */
+    private boolean append(String playerId, ChatHistory history, String question, String answer) {
+        synchronized (history) {
+            if (!history.append(question, answer)) {
+                return false;
+            }
+            if (log != null) {
+                log.appendExchange(playerId, question, answer);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 历史记录超出 token 预算或缓冲区已满时，取出最早的一半问答交给调用方生成摘要。
+     * 不需要压缩、未启用摘要或该玩家已有摘要任务时返回 null
+     */
+    public Compaction beginCompaction(String playerId) {
+        if (!summaryEnabled) {
+            return null;
+        }
+        ChatHistory history = find(playerId);
+        if (history == null || !history.beginCompaction()) {
+            return null;
+        }
+
+        ChatHistory.Snapshot snapshot = history.read();
+        List<Turn> turns = snapshot.turns;
+        int total = 0;
+        for (Turn turn : turns) {
+            total += turn.getTokens() + TokenEstimator.MESSAGE_OVERHEAD;
+        }
+        boolean full = turns.size() >= history.getCapacity();
+        boolean overBudget = tokenBudget > 0 && total > tokenBudget;
+        // 至少保留最新的一轮问答
+        if ((!full && !overBudget) || turns.size() < 4) {
+            history.endCompaction();
+            return null;
+        }
+
+        int fold = Math.max(2, turns.size() / 4 * 2);
+        int remaining = total;
+        for (int i = 0; i < fold; i++) {
+            remaining -= turns.get(i).getTokens() + TokenEstimator.MESSAGE_OVERHEAD;
+        }
+        // 剩余部分仍超过预算一半时继续并入较早的问答，留出增长空间
+        while (tokenBudget > 0 && remaining > tokenBudget / 2 && fold < turns.size() - 2) {
+            remaining -= turns.get(fold).getTokens() + turns.get(fold + 1).getTokens()
+                + 2 * TokenEstimator.MESSAGE_OVERHEAD;
+            fold += 2;
+        }
+        String previousSummary = snapshot.summary != null ? snapshot.summary.getContent() : null;
+        return new Compaction(playerId, history, turns.subList(0, fold), previousSummary, snapshot.start + fold);
+    }
+
+    public boolean hasHistory(String playerId) {
+        ChatHistory history = find(playerId);
+        return history != null && !history.isEmpty();
+    }
+
+    public void clear(String playerId) {
+        // 正在写入被移除历史的 record 会失败并改用新的历史
+        ChatHistory history = histories.remove(playerId);
+        if (history != null) {
+            history.retire();
+        }
+        CompressedHistory removed = compressed.remove(playerId);
+        if (removed != null) {
+            compressedBytes.addAndGet(-removed.size());
+        }
+        if (log != null) {
+            log.appendClear(playerId);
+        }
+    }
+
+    public void clearAll() {
+        histories.forEach((playerId, history) -> {
+            if (histories.remove(playerId, history)) {
+                history.retire();
+            }
+        });
+        compressed.clear();
+        compressedBytes.set(0);
+        if (log != null) {
+            log.appendClearAll();
+        }
+    }
+
+    /**
+     * 等待日志写完已记录的内容
+     */
+    public void flush() {
+        if (log != null) {
+            log.flush();
+        }
+    }
+
+    public void close() {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * 日志统计，未启用持久化时返回 null
+     */
+    public String getLogStats() {
+        return log != null ? log.getStats() : null;
+    }
+
+    /**
+     * 把不活跃的对话移出内存，然后按最久未使用的顺序移出，直到估算占用不超过内存预算。
+     * 由定期清理任务调用
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, ChatHistory>> active = new ArrayList<>();
+        long used = 0;
+        for (Map.Entry<String, ChatHistory> entry : histories.entrySet()) {
+            ChatHistory history = entry.getValue();
+            if (now - history.getLastAccess() > idleAfter && offload(entry.getKey(), history)) {
+                continue;
+            }
+            active.add(entry);
+            used += history.estimateBytes();
+        }
+
+        if (used + compressedBytes.get() > memoryBudget) {
+            active.sort(Comparator.comparingLong(entry -> entry.getValue().getLastAccess()));
+            for (Map.Entry<String, ChatHistory> entry : active) {
+                if (used + compressedBytes.get() <= memoryBudget) {
+                    break;
+                }
+                long bytes = entry.getValue().estimateBytes();
+                if (offload(entry.getKey(), entry.getValue())) {
+                    used -= bytes;
+                }
+            }
+        }
+
+        // 压缩数据仍然超出预算时丢弃最久未使用的
+        if (compressedBytes.get() > memoryBudget - used) {
+            List<Map.Entry<String, CompressedHistory>> idle = new ArrayList<>(compressed.entrySet());
+            idle.sort(Comparator.comparingLong(entry -> entry.getValue().getLastAccess()));
+            for (Map.Entry<String, CompressedHistory> entry : idle) {
+                if (compressedBytes.get() <= memoryBudget - used) {
+                    break;
+                }
+                if (compressed.remove(entry.getKey(), entry.getValue())) {
+                    compressedBytes.addAndGet(-entry.getValue().size());
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+        estimatedBytes = used + compressedBytes.get();
+    }
+
+    /**
+     * 把一名玩家的对话移出内存，正在生成摘要时跳过
+     */
+    private boolean offload(String playerId, ChatHistory history) {
+        if (history.isCompacting()) {
+            return false;
+        }
+        ChatHistory.Snapshot snapshot = history.retire();
+        // 先放入压缩数据再移除，期间读取到的仍是已停止写入的旧历史，调用方会重试直到取到压缩数据
+        if (log == null) {
+            CompressedHistory packed = CompressedHistory.compress(snapshot, history.getLastAccess());
+            CompressedHistory previous = compressed.put(playerId, packed);
+            compressedBytes.addAndGet(packed.size() - (previous != null ? previous.size() : 0));
+        }
+        histories.remove(playerId, history);
+        offloaded.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 内存中的历史记录，不在内存中时从压缩数据或日志还原
+     */
+    private ChatHistory find(String playerId) {
+        ChatHistory history = histories.get(playerId);
+        if (history == null && compressed.containsKey(playerId)) {
+            // 取出、解压和放回在同一次 computeIfAbsent 中完成，其间同一玩家的 record 会等待
+            history = histories.computeIfAbsent(playerId, this::inflate);
+        }
+        if (history == null && log != null) {
+            // 读取日志可能阻塞，不能放在 computeIfAbsent 中。日志中已有全部记录，竞争失败时以内存中的为准
+            history = log.load(playerId);
+            if (history == null) {
+                return null;
+            }
+            restored.incrementAndGet();
+            ChatHistory existing = histories.putIfAbsent(playerId, history);
+            if (existing != null) {
+                history = existing;
+            }
+        }
+        if (history == null) {
+            return null;
+        }
+        history.touch();
+        return history;
+    }
+
+    /**
+     * 取出并解压玩家的压缩数据，没有时返回 null。只在 histories 的 computeIfAbsent 中调用
+     */
+    private ChatHistory inflate(String playerId) {
+        CompressedHistory packed = compressed.remove(playerId);
+        if (packed == null) {
+            return null;
+        }
+        compressedBytes.addAndGet(-packed.size());
+        restored.incrementAndGet();
+        return packed.inflate(configManager.getMaxHistory());
+    }
+
+    public String getStats() {
+        int turns = 0;
+        int summaries = 0;
+        for (ChatHistory history : histories.values()) {
+            turns += history.size();
+            if (history.read().summary != null) {
+                summaries++;
+            }
+        }
+        return String.format("内存中 %d 名玩家, 消息 %d, 摘要 %d, 每次请求预算 %s, 压缩 %d 名 (%d KB), "
+                + "估算占用 %d KB / %d KB, 已移出 %d 次, 已还原 %d 次, 已丢弃 %d 次",
+            histories.size(), turns, summaries, tokenBudget > 0 ? tokenBudget + " token" : "不限",
+            compressed.size(), compressedBytes.get() / 1024, estimatedBytes / 1024, memoryBudget / 1024,
+            offloaded.get(), restored.get(), dropped.get());
+    }
+}
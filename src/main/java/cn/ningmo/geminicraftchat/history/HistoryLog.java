@@ -0,0 +1,791 @@
+package cn.ningmo.geminicraftchat.history;
+
+import cn.ningmo.geminicraftchat.GeminiCraftChat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * 对话历史的追加写日志，保存在插件目录下的 history 文件夹中。
+ * <p>
+ * 每条记录为 [长度][CRC32][内容]，按顺序追加到段文件，单个段写满后换新段。
+ * 所有文件操作都在一个后台写入线程中进行，同一批排队的记录一次写入、一次刷盘。
+ * 内存中只保存索引：每名玩家最近几轮问答和摘要所在的位置，玩家再次提问时才读取内容。
+ * 正常关闭时索引写入 index.dat，启动时读取索引后只需扫描之后追加的记录。
+ * 段文件数超过上限时在写入线程中把仍然有效的记录复制到新段，然后删除旧段
+ */
+public class HistoryLog {
+    private static final byte EXCHANGE = 1;
+    private static final byte SUMMARY = 2;
+    private static final byte CLEAR = 3;
+    private static final byte CLEAR_ALL = 4;
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_MAGIC = 0x47434349;
+    private static final int INDEX_VERSION = 1;
+    private static final int MAX_BATCH = 256;
+    private static final long LOAD_TIMEOUT = 3000;
+    // 每个目录最近打开的日志，重载时新日志等待旧日志的写入线程退出后再读取文件
+    private static final Map<String, HistoryLog> OPEN = new ConcurrentHashMap<>();
+
+    private final Logger logger;
+    private final Consumer<String> debug;
+    private final File directory;
+    private final int maxExchanges;
+    private final long segmentSize;
+    private final int compactSegments;
+    private final boolean fsync;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    // 同一目录上一个日志，恢复前等待它的写入线程退出，之后不再引用
+    private HistoryLog previous;
+
+    // 以下字段只在写入线程中访问
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // 已放入 pending 但尚未写入文件的记录，写入成功后才更新索引
+    private final List<Record> uncommitted = new ArrayList<>();
+    private int activeId;
+    private FileChannel active;
+    private long activeSize;
+    private boolean compacting;
+    // 上次压缩后剩下的段数，有效记录本身就占很多段时避免每次换段都压缩
+    private int compactedSegments;
+
+    // 索引只在写入线程中修改，其他线程可以读取
+    private final Map<String, PlayerIndex> index = new ConcurrentHashMap<>();
+    private volatile boolean recovered;
+    private volatile boolean closed;
+    private volatile int segmentCount;
+    private volatile long recoveryMillis = -1;
+    private final AtomicLong writtenRecords = new AtomicLong();
+    private final AtomicLong writtenBatches = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    /**
+     * 一条待写入的记录，内容在调用方线程中编码好
+     */
+    private static final class Record {
+        final byte type;
+        final String playerId;
+        final int retained;
+        final byte[] frame;
+        // 在段中的位置，由写入线程设置
+        long position;
+
+        Record(byte type, String playerId, int retained, byte[] frame) {
+            this.type = type;
+            this.playerId = playerId;
+            this.retained = retained;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * 单个玩家的索引，不可修改。位置为 段号 << 32 | 段内偏移
+     */
+    private static final class PlayerIndex {
+        static final PlayerIndex EMPTY = new PlayerIndex(-1, new long[0]);
+
+        final long summary;
+        // 从旧到新
+        final long[] exchanges;
+
+        PlayerIndex(long summary, long[] exchanges) {
+            this.summary = summary;
+            this.exchanges = exchanges;
+        }
+
+        PlayerIndex withExchange(long position, int max) {
+            int keep = Math.min(exchanges.length, max - 1);
+            long[] next = new long[keep + 1];
+            System.arraycopy(exchanges, exchanges.length - keep, next, 0, keep);
+            next[keep] = position;
+            return new PlayerIndex(summary, next);
+        }
+
+        /**
+         * 摘要写入时内存中还保留 retained 轮问答，更早的已并入摘要
+         */
+        PlayerIndex withSummary(long position, int retained) {
+            int keep = Math.max(0, Math.min(exchanges.length, retained));
+            return new PlayerIndex(position, Arrays.copyOfRange(exchanges, exchanges.length - keep, exchanges.length));
+        }
+    }
+
+    public HistoryLog(GeminiCraftChat plugin, File directory, int maxExchanges) {
+        this(plugin.getLogger(), plugin::debug, directory, maxExchanges,
+            Math.max(64 * 1024, plugin.getConfig().getLong("chat.history.persistence.segment_size", 4194304)),
+            Math.max(2, plugin.getConfig().getInt("chat.history.persistence.compact_segments", 4)),
+            plugin.getConfig().getBoolean("chat.history.persistence.fsync", false));
+    }
+
+    /**
+     * 参数不经过配置校验，供测试使用较小的段
+     */
+    HistoryLog(Logger logger, Consumer<String> debug, File directory, int maxExchanges, long segmentSize,
+               int compactSegments, boolean fsync) {
+        this.logger = logger;
+        this.debug = debug;
+        this.directory = directory;
+        this.maxExchanges = Math.max(1, maxExchanges);
+        this.segmentSize = segmentSize;
+        this.compactSegments = compactSegments;
+        this.fsync = fsync;
+
+        this.previous = OPEN.put(directory.getAbsolutePath(), this);
+        // 索引恢复是写入线程的第一个任务，之前排队的读写都在恢复完成后执行
+        queue.add((Runnable) this::recover);
+        this.writer = new Thread(this::run, "GeminiCraftChat-HistoryLog");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public void appendExchange(String playerId, String question, String answer) {
+        append(EXCHANGE, playerId, 0, question, answer);
+    }
+
+    /**
+     * 记录新的摘要，retained 为此时内存中保留的问答轮数
+     */
+    public void appendSummary(String playerId, String summary, int retained) {
+        append(SUMMARY, playerId, retained, summary, null);
+    }
+
+    public void appendClear(String playerId) {
+        append(CLEAR, playerId, 0, null, null);
+    }
+
+    public void appendClearAll() {
+        append(CLEAR_ALL, "", 0, null, null);
+    }
+
+    private void append(byte type, String playerId, int retained, String first, String second) {
+        if (closed) {
+            return;
+        }
+        queue.add(new Record(type, playerId, retained, encode(type, playerId, retained, first, second)));
+    }
+
+    /**
+     * 在写入线程中读取玩家的历史记录，没有记录或读取失败时返回 null。会阻塞调用线程直到读取完成
+     */
+    public ChatHistory load(String playerId) {
+        if (closed || (recovered && !index.containsKey(playerId))) {
+            return null;
+        }
+        CompletableFuture<ChatHistory> future = new CompletableFuture<>();
+        queue.add((Runnable) () -> {
+            try {
+                future.complete(read(playerId));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        try {
+            return future.get(LOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            logger.warning("读取历史记录失败 [" + playerId + "]: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 等待已排队的记录写入并保存索引
+     */
+    public void flush() {
+        if (closed) {
+            return;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        queue.add((Runnable) () -> {
+            saveIndex();
+            future.complete(null);
+        });
+        try {
+            future.get(LOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.warning("保存历史记录超时: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 写完已排队的记录，保存索引并关闭文件，之后的追加和读取都会被忽略
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add((Runnable) this::shutdown);
+        if (!awaitExit()) {
+            logger.warning("历史记录写入线程未能退出");
+        }
+    }
+
+    /**
+     * 等待写入线程写完并退出，超时后中断它再等待一次。返回写入线程是否已退出
+     */
+    private boolean awaitExit() {
+        try {
+            writer.join(LOAD_TIMEOUT);
+            if (writer.isAlive()) {
+                logger.warning("历史记录写入超时，中断写入线程，未写入的记录将丢失");
+                writer.interrupt();
+                writer.join(LOAD_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+
+    public String getStats() {
+        long batches = writtenBatches.get();
+        return String.format("段 %d, 玩家 %d, 已写入 %d 条 / %d 批 (平均每批 %.1f 条), %d KB, 刷盘 %d 次, 压缩 %d 次, 启动恢复 %s",
+            segmentCount, index.size(), writtenRecords.get(), batches,
+            batches > 0 ? (double) writtenRecords.get() / batches : 0.0, writtenBytes.get() / 1024, syncs.get(),
+            compactions.get(), recoveryMillis >= 0 ? recoveryMillis + "ms" : "进行中");
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            try {
+                for (Object item : batch) {
+                    if (item instanceof Record) {
+                        write((Record) item);
+                    } else {
+                        // 任务执行前先写入之前的记录，保证读取到的内容是最新的
+                        commit();
+                        ((Runnable) item).run();
+                    }
+                }
+                commit();
+            } catch (Exception e) {
+                logger.warning("写入历史记录失败: " + e.getMessage());
+                discard();
+            }
+            batch.clear();
+            if (active == null && closed) {
+                break;
+            }
+        }
+        // 被中断时也关闭文件，之后同一目录的新日志才能安全打开
+        if (active != null) {
+            Thread.interrupted();
+            shutdown();
+        }
+        OPEN.remove(directory.getAbsolutePath(), this);
+    }
+
+    private void write(Record record) throws IOException {
+        if (active == null) {
+            return;
+        }
+        if (activeSize + pending.size() + record.frame.length > segmentSize && activeSize + pending.size() > 0) {
+            commit();
+            roll();
+        }
+        record.position = position(activeId, activeSize + pending.size());
+        pending.write(record.frame);
+        uncommitted.add(record);
+    }
+
+    /**
+     * 把本批记录一次写入当前段，需要时刷盘，写入成功后再更新索引
+     */
+    private void commit() throws IOException {
+        if (pending.size() == 0 || active == null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        while (buffer.hasRemaining()) {
+            active.write(buffer, activeSize + buffer.position());
+        }
+        if (fsync) {
+            active.force(false);
+            syncs.incrementAndGet();
+        }
+        activeSize += pending.size();
+        writtenBytes.addAndGet(pending.size());
+        writtenBatches.incrementAndGet();
+        pending.reset();
+        for (Record record : uncommitted) {
+            apply(record.type, record.playerId, record.retained, record.position);
+        }
+        writtenRecords.addAndGet(uncommitted.size());
+        uncommitted.clear();
+    }
+
+    /**
+     * 写入失败时丢弃本批未写入的记录，截掉可能已写入一半的内容，索引仍指向已写入的记录
+     */
+    private void discard() {
+        pending.reset();
+        uncommitted.clear();
+        if (active == null) {
+            return;
+        }
+        try {
+            if (active.size() > activeSize) {
+                active.truncate(activeSize);
+            }
+        } catch (IOException e) {
+            logger.warning("回滚历史记录失败: " + e.getMessage());
+        }
+    }
+
+    private void roll() throws IOException {
+        activeId++;
+        active = openSegment(activeId);
+        activeSize = 0;
+        segments.put(activeId, active);
+        segmentCount = segments.size();
+        if (!compacting && segments.size() > Math.max(compactSegments, compactedSegments * 2)) {
+            compact();
+        }
+    }
+
+    private void apply(byte type, String playerId, int retained, long position) {
+        switch (type) {
+            case EXCHANGE: {
+                PlayerIndex current = index.get(playerId);
+                index.put(playerId, (current != null ? current : PlayerIndex.EMPTY).withExchange(position, maxExchanges));
+                break;
+            }
+            case SUMMARY: {
+                PlayerIndex current = index.get(playerId);
+                index.put(playerId, (current != null ? current : PlayerIndex.EMPTY).withSummary(position, retained));
+                break;
+            }
+            case CLEAR:
+                index.remove(playerId);
+                break;
+            case CLEAR_ALL:
+                index.clear();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private ChatHistory read(String playerId) throws IOException {
+        PlayerIndex entry = index.get(playerId);
+        if (entry == null) {
+            return null;
+        }
+        ChatHistory history = new ChatHistory(maxExchanges);
+        // 只接受属于该玩家的记录，索引出错时不会把其他玩家的对话交给他
+        for (long position : entry.exchanges) {
+            DataInputStream in = payload(readFrame(position));
+            if (in.readByte() != EXCHANGE || !playerId.equals(readString(in))) {
+                logger.warning("历史记录索引与日志不一致 [" + playerId + "]，已跳过一条记录");
+                continue;
+            }
+            history.append(readString(in), readString(in));
+        }
+        if (entry.summary >= 0) {
+            DataInputStream in = payload(readFrame(entry.summary));
+            if (in.readByte() == SUMMARY && playerId.equals(readString(in))) {
+                in.readInt();
+                history.compact(0, readString(in));
+            } else {
+                logger.warning("历史记录索引与日志不一致 [" + playerId + "]，已跳过摘要");
+            }
+        }
+        return history;
+    }
+
+    /**
+     * 读取索引并扫描索引之后追加的记录，截掉末尾写了一半的记录
+     */
+    private void recover() {
+        long start = System.currentTimeMillis();
+        int scanned = 0;
+        try {
+            // 重载时旧日志可能还在写入，等它关闭后再读取；仍未退出时不打开目录，避免两个线程写同一个段
+            if (previous != null) {
+                boolean exited = previous.awaitExit();
+                previous = null;
+                if (!exited) {
+                    throw new IOException("上一个日志的写入线程仍在运行");
+                }
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("无法创建目录 " + directory);
+            }
+            File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+            if (files != null) {
+                for (File file : files) {
+                    int id = segmentId(file.getName());
+                    if (id > 0) {
+                        segments.put(id, openSegment(id));
+                    }
+                }
+            }
+
+            long resume = loadIndex();
+            if (resume < 0) {
+                index.clear();
+                resume = segments.isEmpty() ? 0 : position(segments.firstKey(), 0);
+            }
+            for (Map.Entry<Integer, FileChannel> segment : segments.tailMap(segmentOf(resume), true).entrySet()) {
+                long offset = segment.getKey() == segmentOf(resume) ? offsetOf(resume) : 0;
+                scanned += scan(segment.getKey(), segment.getValue(), offset, segment.getKey().equals(segments.lastKey()));
+            }
+
+            if (segments.isEmpty()) {
+                activeId = 1;
+                segments.put(activeId, openSegment(activeId));
+            } else {
+                activeId = segments.lastKey();
+            }
+            active = segments.get(activeId);
+            activeSize = active.size();
+            segmentCount = segments.size();
+        } catch (IOException e) {
+            logger.warning("历史记录日志不可用: " + e.getMessage());
+            active = null;
+        }
+        recoveryMillis = System.currentTimeMillis() - start;
+        recovered = true;
+        logger.info(String.format("已加载 %d 名玩家的历史记录索引，扫描 %d 条日志，耗时 %dms",
+            index.size(), scanned, recoveryMillis));
+    }
+
+    /**
+     * 从 offset 开始依次应用记录，返回扫描的条数。最后一个段末尾的损坏记录会被截掉
+     */
+    private int scan(int id, FileChannel channel, long offset, boolean last) throws IOException {
+        long size = channel.size();
+        long position = offset;
+        int count = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length <= 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_SIZE);
+            if (crc(payload.array()) != crc) {
+                break;
+            }
+            DataInputStream in = payload(payload.array());
+            byte type = in.readByte();
+            String playerId = readString(in);
+            int retained = type == SUMMARY ? in.readInt() : 0;
+            apply(type, playerId, retained, position(id, position));
+            position += HEADER_SIZE + length;
+            count++;
+        }
+        if (position < size) {
+            logger.warning("历史记录段 " + id + " 在偏移 " + position + " 处损坏，之后的内容已忽略");
+            if (last) {
+                channel.truncate(position);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 把索引中仍然需要的记录复制到新段，保存索引后删除旧段
+     */
+    private void compact() throws IOException {
+        compacting = true;
+        long start = System.currentTimeMillis();
+        try {
+            int before = segments.size();
+            List<Integer> oldSegments = new ArrayList<>(segments.headMap(activeId, false).keySet());
+            // 复制出的记录前先写一条清空记录，删除旧段前崩溃时重新扫描也不会把旧记录和副本重复计入
+            pending.write(encode(CLEAR_ALL, "", 0, null, null));
+            Map<String, PlayerIndex> rewritten = new HashMap<>();
+            for (Map.Entry<String, PlayerIndex> entry : index.entrySet()) {
+                PlayerIndex current = entry.getValue();
+                // 摘要在前，恢复扫描时不会截掉之后的问答
+                long summary = current.summary >= 0 ? copy(current.summary) : -1;
+                long[] exchanges = new long[current.exchanges.length];
+                for (int i = 0; i < exchanges.length; i++) {
+                    exchanges[i] = copy(current.exchanges[i]);
+                }
+                rewritten.put(entry.getKey(), new PlayerIndex(summary, exchanges));
+            }
+            commit();
+            index.putAll(rewritten);
+            saveIndex();
+
+            for (Integer id : oldSegments) {
+                FileChannel channel = segments.remove(id);
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.deleteIfExists(segmentFile(id).toPath());
+            }
+            segmentCount = segments.size();
+            compactedSegments = segments.size();
+            compactions.incrementAndGet();
+            debug.accept(String.format("历史记录日志压缩完成: %d 个段 -> %d 个段, 耗时 %dms",
+                before, segments.size(), System.currentTimeMillis() - start));
+        } finally {
+            compacting = false;
+        }
+    }
+
+    private long copy(long position) throws IOException {
+        byte[] payload = readFrame(position);
+        if (activeSize + pending.size() + HEADER_SIZE + payload.length > segmentSize && activeSize + pending.size() > 0) {
+            commit();
+            roll();
+        }
+        long newPosition = position(activeId, activeSize + pending.size());
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(payload.length);
+        out.writeInt(crc(payload));
+        out.write(payload);
+        return newPosition;
+    }
+
+    private void shutdown() {
+        try {
+            saveIndex();
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.warning("关闭历史记录日志失败: " + e.getMessage());
+        }
+        segments.clear();
+        active = null;
+    }
+
+    /**
+     * 索引先写入临时文件再替换，写入过程中崩溃时旧索引仍然可用
+     */
+    private void saveIndex() {
+        if (active == null) {
+            return;
+        }
+        File file = new File(directory, "index.dat");
+        File temp = new File(directory, "index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(position(activeId, activeSize));
+            out.writeInt(index.size());
+            for (Map.Entry<String, PlayerIndex> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().summary);
+                out.writeInt(entry.getValue().exchanges.length);
+                for (long position : entry.getValue().exchanges) {
+                    out.writeLong(position);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("保存历史记录索引失败: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("保存历史记录索引失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 读取索引文件，返回索引保存时的写入位置。索引不存在、损坏或引用了不存在的段时返回 -1
+     */
+    private long loadIndex() {
+        File file = new File(directory, "index.dat");
+        if (!file.isFile()) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return -1;
+            }
+            long resume = in.readLong();
+            FileChannel resumeSegment = segments.get(segmentOf(resume));
+            if (resumeSegment == null || resumeSegment.size() < offsetOf(resume)) {
+                return -1;
+            }
+            int players = in.readInt();
+            for (int i = 0; i < players; i++) {
+                String playerId = in.readUTF();
+                long summary = in.readLong();
+                long[] exchanges = new long[in.readInt()];
+                for (int j = 0; j < exchanges.length; j++) {
+                    exchanges[j] = in.readLong();
+                }
+                if ((summary >= 0 && !segments.containsKey(segmentOf(summary))) || !segmentsExist(exchanges)) {
+                    index.clear();
+                    return -1;
+                }
+                if (exchanges.length > maxExchanges) {
+                    exchanges = Arrays.copyOfRange(exchanges, exchanges.length - maxExchanges, exchanges.length);
+                }
+                index.put(playerId, new PlayerIndex(summary, exchanges));
+            }
+            return resume;
+        } catch (IOException e) {
+            logger.warning("历史记录索引损坏，将重新扫描: " + e.getMessage());
+            index.clear();
+            return -1;
+        }
+    }
+
+    private boolean segmentsExist(long[] positions) {
+        for (long position : positions) {
+            if (!segments.containsKey(segmentOf(position))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readFrame(long position) throws IOException {
+        FileChannel channel = segments.get(segmentOf(position));
+        if (channel == null) {
+            throw new IOException("历史记录段 " + segmentOf(position) + " 不存在");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, offsetOf(position));
+        header.flip();
+        int length = header.getInt();
+        int crc = header.getInt();
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, offsetOf(position) + HEADER_SIZE);
+        if (crc(payload.array()) != crc) {
+            throw new IOException("历史记录校验失败");
+        }
+        return payload.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("历史记录意外结束");
+            }
+        }
+    }
+
+    private static byte[] encode(byte type, String playerId, int retained, String first, String second) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(type);
+            writeString(out, playerId);
+            if (type == SUMMARY) {
+                out.writeInt(retained);
+            }
+            if (first != null) {
+                writeString(out, first);
+            }
+            if (second != null) {
+                writeString(out, second);
+            }
+            byte[] bytes = payload.toByteArray();
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+            frame.putInt(bytes.length).putInt(crc(bytes)).put(bytes);
+            return frame.array();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DataInputStream payload(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private FileChannel openSegment(int id) throws IOException {
+        return FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("segment-%08d.log", id));
+    }
+
+    private static int segmentId(String name) {
+        try {
+            return Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long position(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static long offsetOf(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,44 @@
+package cn.ningmo.geminicraftchat.history;
+
+import java.util.List;
+
+/**
+ * 粗略估算文本的 token 数：中日韩字符约每字 1 个 token，其余字符约每 4 个 1 个 token。
+ * 用于配额预扣和历史记录裁剪，实际用量以上游返回为准
+ */
+public final class TokenEstimator {
+    // 每条消息的角色、分隔符等固定开销
+    public static final int MESSAGE_OVERHEAD = 4;
+
+    private TokenEstimator() {
+    }
+
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int wide = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= '⺀') {
+                wide++;
+            } else {
+                other++;
+            }
+        }
+        return wide + (other + 3) / 4;
+    }
+
+    public static int estimate(List<Turn> history, String message, String persona) {
+        int tokens = estimate(message) + MESSAGE_OVERHEAD;
+        if (persona != null) {
+            tokens += estimate(persona) + MESSAGE_OVERHEAD;
+        }
+        if (history != null) {
+            for (Turn turn : history) {
+                tokens += turn.getTokens() + MESSAGE_OVERHEAD;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,49 @@
+package cn.ningmo.geminicraftchat.history;
+
+/**
+ * 对话中的一条消息，创建后不可修改
+ */
+public final class Turn {
+    public enum Role {
+        // 较早对话的摘要
+        SYSTEM("system"),
+        USER("user"),
+        ASSISTANT("assistant");
+
+        private final String apiName;
+
+        Role(String apiName) {
+            this.apiName = apiName;
+        }
+
+        /**
+         * 请求体中使用的角色名
+         */
+        public String getApiName() {
+            return apiName;
+        }
+    }
+
+    private final Role role;
+    private final String content;
+    // 内容的估算 token 数，裁剪历史记录时使用
+    private final int tokens;
+
+    public Turn(Role role, String content) {
+        this.role = role;
+        this.content = content;
+        this.tokens = TokenEstimator.estimate(content);
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public int getTokens() {
+        return tokens;
+    }
+}
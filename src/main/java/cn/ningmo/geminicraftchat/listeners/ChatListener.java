@@ -3,6 +3,7 @@ package cn.ningmo.geminicraftchat.listeners;
 import cn.ningmo.geminicraftchat.GeminiCraftChat;
 import cn.ningmo.geminicraftchat.chat.ChatManager;
 import cn.ningmo.geminicraftchat.config.ConfigManager;
+import cn.ningmo.geminicraftchat.config.FirstWordDispatcher;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -14,85 +15,64 @@ import java.util.List;
 
 public class ChatListener implements Listener {
     private final GeminiCraftChat plugin;
-    private final ChatManager chatManager;
     private final ConfigManager configManager;
 
     public ChatListener(GeminiCraftChat plugin) {
         this.plugin = plugin;
-        this.chatManager = plugin.getChatManager();
         this.configManager = plugin.getConfigManager();
     }
 
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerChat(AsyncPlayerChatEvent event) {
-        Player player = event.getPlayer();
         String message = event.getMessage();
 
-        // 检查是否是中文命令
-        if (handleChineseCommand(player, message)) {
-            event.setCancelled(true);
+        // 普通聊天在这里就会返回，不切分消息也不分配对象
+        FirstWordDispatcher.Action action = configManager.getSnapshot().getDispatcher().dispatch(message);
+        if (action == FirstWordDispatcher.Action.NONE) {
             return;
         }
 
-        // 检查是否是AI触发消息
-        if (isAITrigger(message)) {
-            event.setCancelled(true);
-            String question = message.substring(message.indexOf(" ") + 1).trim();
-            chatManager.handleChat(player, question);
-        }
-    }
-
-    private boolean handleChineseCommand(Player player, String message) {
-        List<String> clearMemoryCommands = configManager.getConfig().getStringList("commands.chinese.clear_memory");
-        List<String> switchPersonaCommands = configManager.getConfig().getStringList("commands.chinese.switch_persona");
-        List<String> listPersonasCommands = configManager.getConfig().getStringList("commands.chinese.list_personas");
-        List<String> helpCommands = configManager.getConfig().getStringList("commands.chinese.help");
-
-        String command = message.split(" ")[0];
-
-        if (clearMemoryCommands.contains(command)) {
-            chatManager.clearHistory(player.getName());
-            player.sendMessage(ChatColor.GREEN + "已清除你的对话记忆");
-            return true;
-        }
-
-        if (switchPersonaCommands.contains(command)) {
-            String personaName = message.substring(command.length()).trim();
-            if (personaName.isEmpty()) {
-                player.sendMessage(ChatColor.RED + "请指定要切换的人设名称");
-                return true;
+        event.setCancelled(true);
+        Player player = event.getPlayer();
+        // 重载后聊天管理器会被替换，每次都重新获取
+        ChatManager chatManager = plugin.getChatManager();
+
+        switch (action) {
+            case AI_TRIGGER: {
+                String question = message.substring(message.indexOf(" ") + 1).trim();
+                chatManager.handleChat(player, question);
+                break;
             }
-            if (chatManager.switchPersona(player, personaName)) {
-                player.sendMessage(ChatColor.GREEN + "已切换到人设: " + personaName);
-            } else {
-                player.sendMessage(ChatColor.RED + "找不到指定的人设: " + personaName);
+            case CLEAR_MEMORY:
+                chatManager.clearHistory(player.getName());
+                player.sendMessage(ChatColor.GREEN + "已清除你的对话记忆");
+                break;
+            case SWITCH_PERSONA: {
+                int space = message.indexOf(' ');
+                String personaName = space < 0 ? "" : message.substring(space + 1).trim();
+                if (personaName.isEmpty()) {
+                    player.sendMessage(ChatColor.RED + "请指定要切换的人设名称");
+                } else if (chatManager.switchPersona(player, personaName)) {
+                    player.sendMessage(ChatColor.GREEN + "已切换到人设: " + personaName);
+                } else {
+                    player.sendMessage(ChatColor.RED + "找不到指定的人设: " + personaName);
+                }
+                break;
             }
-            return true;
-        }
-
-        if (listPersonasCommands.contains(command)) {
-            List<String> personas = chatManager.getAvailablePersonas();
-            player.sendMessage(ChatColor.GREEN + "可用的人设列表:");
-            for (String persona : personas) {
-                player.sendMessage(ChatColor.GRAY + "- " + persona);
+            case LIST_PERSONAS: {
+                List<String> personas = chatManager.getAvailablePersonas();
+                player.sendMessage(ChatColor.GREEN + "可用的人设列表:");
+                for (String persona : personas) {
+                    player.sendMessage(ChatColor.GRAY + "- " + persona);
+                }
+                break;
             }
-            return true;
-        }
-
-        if (helpCommands.contains(command)) {
-            sendHelpMessage(player);
-            return true;
+            case HELP:
+                sendHelpMessage(player);
+                break;
+            default:
+                break;
         }
-
-        return false;
-    }
-
-    private boolean isAITrigger(String message) {
-        String trigger = configManager.getDefaultTrigger();
-        List<String> triggers = configManager.getTriggerWords();
-        
-        String firstWord = message.split(" ")[0].toLowerCase();
-        return firstWord.equals(trigger) || triggers.contains(firstWord);
     }
 
     private void sendHelpMessage(Player player) {
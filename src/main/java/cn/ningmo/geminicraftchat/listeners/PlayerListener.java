@@ -0,0 +1,46 @@
+package cn.ningmo.geminicraftchat.listeners;
+
+import cn.ningmo.geminicraftchat.GeminiCraftChat;
+import cn.ningmo.geminicraftchat.chat.ChatManager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * 维护广播接收者列表。在 MONITOR 阶段处理，此时权限插件已经完成权限设置
+ */
+public class PlayerListener implements Listener {
+    private final GeminiCraftChat plugin;
+
+    public PlayerListener(GeminiCraftChat plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        ChatManager chatManager = plugin.getChatManager();
+        if (chatManager != null) {
+            chatManager.getBroadcastRecipients().update(event.getPlayer());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        ChatManager chatManager = plugin.getChatManager();
+        if (chatManager != null) {
+            chatManager.getBroadcastRecipients().remove(event.getPlayer());
+        }
+    }
+
+    // 按世界分配权限的权限插件在切换世界后才会改变权限
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        ChatManager chatManager = plugin.getChatManager();
+        if (chatManager != null) {
+            chatManager.getBroadcastRecipients().update(event.getPlayer());
+        }
+    }
+}
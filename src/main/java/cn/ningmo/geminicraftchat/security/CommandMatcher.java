@@ -0,0 +1,155 @@
+package cn.ningmo.geminicraftchat.security;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 命令检查使用的 Aho-Corasick 多模式匹配器，忽略大小写，一次扫描即可找出任意屏蔽规则。
+ * 在加载配置时构建，之后只读，可被多个线程同时使用
+ */
+public final class CommandMatcher {
+    // 每个状态的转移按字符排序存放，查找时二分
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] fail;
+    // 到达该状态时命中的规则下标（含后缀链接上的规则），没有时为 -1
+    private final int[] output;
+    private final String[] rules;
+
+    private CommandMatcher(char[][] keys, int[][] targets, int[] fail, int[] output, String[] rules) {
+        this.keys = keys;
+        this.targets = targets;
+        this.fail = fail;
+        this.output = output;
+        this.rules = rules;
+    }
+
+    /**
+     * 用屏蔽命令和屏蔽关键词构建匹配器，空字符串会被忽略
+     */
+    public static CommandMatcher build(List<String> commands, List<String> keywords) {
+        List<String> rules = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        for (String command : commands) {
+            addRule(rules, patterns, "命令 " + command, command);
+        }
+        for (String keyword : keywords) {
+            addRule(rules, patterns, "关键词 " + keyword, keyword);
+        }
+
+        // 先用有序映射构建字典树
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        outputs.add(-1);
+        for (int rule = 0; rule < patterns.size(); rule++) {
+            String pattern = patterns.get(rule);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    outputs.add(-1);
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            if (outputs.get(state) < 0) {
+                outputs.set(state, rule);
+            }
+        }
+
+        int size = trie.size();
+        char[][] keys = new char[size][];
+        int[][] targets = new int[size][];
+        int[] fail = new int[size];
+        int[] output = new int[size];
+        for (int state = 0; state < size; state++) {
+            TreeMap<Character, Integer> edges = trie.get(state);
+            keys[state] = new char[edges.size()];
+            targets[state] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                keys[state][i] = edge.getKey();
+                targets[state][i] = edge.getValue();
+                i++;
+            }
+            output[state] = outputs.get(state);
+        }
+
+        // 按层计算失败链接，并把后缀上的命中合并到当前状态
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) {
+            fail[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < keys[state].length; i++) {
+                char c = keys[state][i];
+                int child = targets[state][i];
+                int f = fail[state];
+                int next;
+                while ((next = step(keys, targets, f, c)) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = next >= 0 ? next : 0;
+                if (output[child] < 0) {
+                    output[child] = output[fail[child]];
+                }
+                queue.add(child);
+            }
+        }
+        return new CommandMatcher(keys, targets, fail, output, rules.toArray(new String[0]));
+    }
+
+    private static void addRule(List<String> rules, List<String> patterns, String rule, String pattern) {
+        if (pattern == null || pattern.isEmpty()) {
+            return;
+        }
+        StringBuilder lower = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); i++) {
+            lower.append(Character.toLowerCase(pattern.charAt(i)));
+        }
+        rules.add(rule);
+        patterns.add(lower.toString());
+    }
+
+    private static int step(char[][] keys, int[][] targets, int state, char c) {
+        int index = Arrays.binarySearch(keys[state], c);
+        return index >= 0 ? targets[state][index] : -1;
+    }
+
+    /**
+     * 返回文本中第一个命中的规则描述，例如 "命令 op"，没有命中时返回 null
+     */
+    public String find(CharSequence text) {
+        if (rules.length == 0) {
+            return null;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int next;
+            while ((next = step(keys, targets, state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next >= 0 ? next : 0;
+            if (output[state] >= 0) {
+                return rules[output[state]];
+            }
+        }
+        return null;
+    }
+
+    public int getRuleCount() {
+        return rules.length;
+    }
+}
@@ -0,0 +1,151 @@
+package cn.ningmo.geminicraftchat.api;
+
+import cn.ningmo.geminicraftchat.api.ResponseParser.Result;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseParserTest {
+    private static final int BODY_LIMIT = 1 << 20;
+    private static final int TEXT_LIMIT = 1 << 16;
+
+    private static InputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String openai(String content) {
+        return "{\"id\":\"x\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":"
+            + content + "}}],\"usage\":{\"total_tokens\":42}}";
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    void unescapesStrings() throws IOException {
+        Result result = ResponseParser.readText(body(openai("\"a\\nb\\t\\\"c\\\" \\\\ \\/ \\u4f60\\u597D\"")),
+            ResponseParser.OPENAI_TEXT, BODY_LIMIT, TEXT_LIMIT);
+        assertEquals("a\nb\t\"c\" \\ / 你好", result.text);
+        assertFalse(result.truncated);
+    }
+
+    @Test
+    void keepsSurrogatePairs() throws IOException {
+        String escaped = ResponseParser.readText(body(openai("\"\\ud83d\\ude00!\"")),
+            ResponseParser.OPENAI_TEXT, BODY_LIMIT, TEXT_LIMIT).text;
+        assertEquals("😀!", escaped);
+        String raw = ResponseParser.readText(body(openai("\"😀!\"")),
+            ResponseParser.OPENAI_TEXT, BODY_LIMIT, TEXT_LIMIT).text;
+        assertEquals("😀!", raw);
+    }
+
+    @Test
+    void truncationDoesNotSplitSurrogatePair() throws IOException {
+        // 上限落在表情的高位代理上时整个表情都不保留
+        Result stopped = ResponseParser.readText(body(openai("\"ab😀cd\"")),
+            ResponseParser.OPENAI_TEXT, BODY_LIMIT, 3);
+        assertEquals("ab", stopped.text);
+        assertTrue(stopped.truncated);
+        Result skipped = ResponseParser.readTextAndUsage(body(openai("\"ab\\ud83d\\ude00cd\"")),
+            ResponseParser.OPENAI_TEXT, ResponseParser.OPENAI_USAGE, BODY_LIMIT, 3);
+        assertEquals("ab", skipped.text);
+        assertTrue(skipped.truncated);
+        assertEquals(42L, skipped.totalTokens);
+    }
+
+    @Test
+    void nullContentIsNotAnAnswer() throws IOException {
+        IOException e = assertThrows(IOException.class, () -> ResponseParser.readText(body(openai("null")),
+            ResponseParser.OPENAI_TEXT, BODY_LIMIT, TEXT_LIMIT));
+        assertEquals("响应中没有找到回答内容", e.getMessage());
+        assertThrows(IOException.class, () -> ResponseParser.readTextAndUsage(body(openai("null")),
+            ResponseParser.OPENAI_TEXT, ResponseParser.OPENAI_USAGE, BODY_LIMIT, TEXT_LIMIT));
+        // 流式事件中的 null 增量视为没有内容
+        assertNull(ResponseParser.readEvent("{\"choices\":[{\"delta\":{\"content\":null}}]}",
+            ResponseParser.OPENAI_DELTA));
+    }
+
+    @Test
+    void nullFieldBeforeTextIsSkipped() throws IOException {
+        String json = "{\"choices\":[{\"message\":{\"refusal\":null,\"tool_calls\":null,\"content\":\"hi\"}}]}";
+        assertEquals("hi", ResponseParser.readText(body(json), ResponseParser.OPENAI_TEXT, BODY_LIMIT, TEXT_LIMIT).text);
+    }
+
+    @Test
+    void readsTextAfterUsage() throws IOException {
+        String json = "{\"usageMetadata\":{\"promptTokenCount\":3,\"totalTokenCount\":17},"
+            + "\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"你好\"}],\"role\":\"model\"}}]}";
+        Result result = ResponseParser.readTextAndUsage(body(json), ResponseParser.DIRECT_TEXT,
+            ResponseParser.DIRECT_USAGE, BODY_LIMIT, TEXT_LIMIT);
+        assertEquals("你好", result.text);
+        assertEquals(17L, result.totalTokens);
+        assertFalse(result.truncated);
+    }
+
+    @Test
+    void missingUsageReportsMinusOne() throws IOException {
+        Result result = ResponseParser.readTextAndUsage(body("{\"response\":\"ok\"}"), ResponseParser.PROXY_TEXT,
+            ResponseParser.OPENAI_USAGE, BODY_LIMIT, TEXT_LIMIT);
+        assertEquals("ok", result.text);
+        assertEquals(-1L, result.totalTokens);
+    }
+
+    @Test
+    void textOfExactlyMaxCharsIsNotTruncated() throws IOException {
+        String text = repeat('x', 16);
+        Result exact = ResponseParser.readText(body(openai("\"" + text + "\"")),
+            ResponseParser.OPENAI_TEXT, BODY_LIMIT, 16);
+        assertEquals(text, exact.text);
+        assertFalse(exact.truncated);
+        Result exactWithUsage = ResponseParser.readTextAndUsage(body(openai("\"" + text + "\"")),
+            ResponseParser.OPENAI_TEXT, ResponseParser.OPENAI_USAGE, BODY_LIMIT, 16);
+        assertEquals(text, exactWithUsage.text);
+        assertFalse(exactWithUsage.truncated);
+    }
+
+    @Test
+    void textOfMaxPlusOneCharsIsTruncated() throws IOException {
+        String text = repeat('x', 17);
+        Result over = ResponseParser.readText(body(openai("\"" + text + "\"")),
+            ResponseParser.OPENAI_TEXT, BODY_LIMIT, 16);
+        assertEquals(text.substring(0, 16), over.text);
+        assertTrue(over.truncated);
+        Result overWithUsage = ResponseParser.readTextAndUsage(body(openai("\"" + text + "\"")),
+            ResponseParser.OPENAI_TEXT, ResponseParser.OPENAI_USAGE, BODY_LIMIT, 16);
+        assertEquals(text.substring(0, 16), overWithUsage.text);
+        assertTrue(overWithUsage.truncated);
+        assertEquals(42L, overWithUsage.totalTokens);
+    }
+
+    @Test
+    void oversizedBodyIsAborted() {
+        String json = openai("\"" + repeat('x', 4096) + "\"");
+        IOException text = assertThrows(IOException.class, () -> ResponseParser.readText(body(json),
+            ResponseParser.OPENAI_TEXT, 1024, TEXT_LIMIT));
+        assertEquals("响应体超过 1024 字符上限，已中止读取", text.getMessage());
+        IOException usage = assertThrows(IOException.class, () -> ResponseParser.readTextAndUsage(body(json),
+            ResponseParser.OPENAI_TEXT, ResponseParser.OPENAI_USAGE, 1024, TEXT_LIMIT));
+        assertEquals("响应体超过 1024 字符上限，已中止读取", usage.getMessage());
+    }
+
+    @Test
+    void bodyWithinLimitIsRead() throws IOException {
+        String json = openai("\"ok\"");
+        assertEquals("ok", ResponseParser.readText(body(json), ResponseParser.OPENAI_TEXT,
+            json.length(), TEXT_LIMIT).text);
+    }
+}
@@ -0,0 +1,105 @@
+package cn.ningmo.geminicraftchat.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天消息首词分派的微基准：与原先切分字符串后逐个列表查找的做法对比。
+ * mvn test-compile 后以测试类路径运行 main 方法，同时启用 gc 分析器输出每次调用分配的字节数
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirstWordDispatcherBenchmark {
+    @Param({"ordinary", "trigger"})
+    public String kind;
+
+    private final String trigger = "ai";
+    private final Set<String> triggerWords = set("ask", "gpt");
+    private final Set<String> clearMemory = set("清除记忆");
+    private final Set<String> switchPersona = set("切换人设");
+    private final Set<String> listPersonas = set("人设列表");
+    private final Set<String> help = set("帮助");
+    private FirstWordDispatcher dispatcher;
+    private String[] messages;
+    private int next;
+
+    @Setup
+    public void setup() {
+        dispatcher = new FirstWordDispatcher(trigger, triggerWords, clearMemory, switchPersona, listPersonas, help);
+        messages = "ordinary".equals(kind)
+            ? new String[] {"大家好", "有人要一起挖矿吗", "anyone selling diamonds", "gg", "主城传送点在哪 谢谢",
+                "afk for 5 minutes", "哈哈哈哈", "brb"}
+            : new String[] {"ai 今天天气怎么样", "AI what is redstone", "清除记忆", "切换人设 猫娘"};
+    }
+
+    @Benchmark
+    public FirstWordDispatcher.Action dispatcher() {
+        return dispatcher.dispatch(nextMessage());
+    }
+
+    /**
+     * 原先的做法：取出首词后查找各个命令列表，再小写后比较触发词
+     */
+    @Benchmark
+    public FirstWordDispatcher.Action splitAndLookup() {
+        String message = nextMessage();
+        int space = message.indexOf(' ');
+        String command = space < 0 ? message : message.substring(0, space);
+        if (clearMemory.contains(command)) {
+            return FirstWordDispatcher.Action.CLEAR_MEMORY;
+        }
+        if (switchPersona.contains(command)) {
+            return FirstWordDispatcher.Action.SWITCH_PERSONA;
+        }
+        if (listPersonas.contains(command)) {
+            return FirstWordDispatcher.Action.LIST_PERSONAS;
+        }
+        if (help.contains(command)) {
+            return FirstWordDispatcher.Action.HELP;
+        }
+        String firstWord = command.toLowerCase(Locale.ROOT);
+        if (firstWord.equals(trigger) || triggerWords.contains(firstWord)) {
+            return FirstWordDispatcher.Action.AI_TRIGGER;
+        }
+        return FirstWordDispatcher.Action.NONE;
+    }
+
+    private String nextMessage() {
+        String message = messages[next];
+        next = next + 1 == messages.length ? 0 : next + 1;
+        return message;
+    }
+
+    private static Set<String> set(String... words) {
+        return new HashSet<>(Arrays.asList(words));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(FirstWordDispatcherBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build()).run();
+    }
+}
@@ -0,0 +1,79 @@
+package cn.ningmo.geminicraftchat.config;
+
+import cn.ningmo.geminicraftchat.config.FirstWordDispatcher.Action;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FirstWordDispatcherTest {
+    private static Set<String> set(String... words) {
+        return new HashSet<>(Arrays.asList(words));
+    }
+
+    private static FirstWordDispatcher dispatcher() {
+        return new FirstWordDispatcher("ai", set("Ask", "问"), set("清除记忆", "问"),
+            set("切换人设"), set("人设列表"), set("帮助"));
+    }
+
+    @Test
+    void ignoresCase() {
+        FirstWordDispatcher dispatcher = dispatcher();
+        assertEquals(Action.AI_TRIGGER, dispatcher.dispatch("AI 你好"));
+        assertEquals(Action.AI_TRIGGER, dispatcher.dispatch("aI 你好"));
+        // 配置中的大写触发词同样按小写匹配
+        assertEquals(Action.AI_TRIGGER, dispatcher.dispatch("ask 你好"));
+        assertEquals(Action.AI_TRIGGER, dispatcher.dispatch("ASK 你好"));
+    }
+
+    @Test
+    void chineseCommandTakesPrecedenceOverTriggerWord() {
+        assertEquals(Action.CLEAR_MEMORY, dispatcher().dispatch("问 一下"));
+    }
+
+    @Test
+    void leadingSpaceIsNotAFirstWord() {
+        FirstWordDispatcher dispatcher = dispatcher();
+        assertEquals(Action.NONE, dispatcher.dispatch(" ai 你好"));
+        assertEquals(Action.NONE, dispatcher.dispatch(" 帮助"));
+    }
+
+    @Test
+    void wordLongerThanAnyKeyIsIgnored() {
+        FirstWordDispatcher dispatcher = dispatcher();
+        assertEquals(Action.NONE, dispatcher.dispatch("aiaiaiaiaiaiai 你好"));
+        assertEquals(Action.NONE, dispatcher.dispatch("清除记忆吧 现在"));
+        // 关键词只是首词的前缀时不匹配
+        assertEquals(Action.NONE, dispatcher.dispatch("air 你好"));
+    }
+
+    @Test
+    void messageWithoutSpaceIsTheFirstWord() {
+        FirstWordDispatcher dispatcher = dispatcher();
+        assertEquals(Action.AI_TRIGGER, dispatcher.dispatch("ai"));
+        assertEquals(Action.CLEAR_MEMORY, dispatcher.dispatch("清除记忆"));
+        assertEquals(Action.LIST_PERSONAS, dispatcher.dispatch("人设列表"));
+        assertEquals(Action.NONE, dispatcher.dispatch("hello"));
+    }
+
+    @Test
+    void dispatchesEachCommand() {
+        FirstWordDispatcher dispatcher = dispatcher();
+        assertEquals(Action.SWITCH_PERSONA, dispatcher.dispatch("切换人设 猫娘"));
+        assertEquals(Action.HELP, dispatcher.dispatch("帮助"));
+        assertEquals(Action.NONE, dispatcher.dispatch("大家好 我是新来的"));
+        assertEquals(Action.NONE, dispatcher.dispatch(""));
+    }
+
+    @Test
+    void emptyConfigurationMatchesNothing() {
+        Set<String> none = Collections.emptySet();
+        FirstWordDispatcher dispatcher = new FirstWordDispatcher("", none, none, none, none, none);
+        assertEquals(Action.NONE, dispatcher.dispatch("ai 你好"));
+        assertEquals(Action.NONE, dispatcher.dispatch("a"));
+    }
+}
@@ -0,0 +1,154 @@
+package cn.ningmo.geminicraftchat.history;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 对话历史日志的微基准：每批追加后等待写入的吞吐（是否刷盘），以及启动恢复耗时（有无 index.dat）。
+ * mvn test-compile 后以测试类路径运行 main 方法，日志写在系统临时目录中，结束后删除
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryLogBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(HistoryLogBenchmark.class.getName());
+    private static final int BATCH = 64;
+    private static final int PLAYERS = 200;
+    private static final String QUESTION = "附近哪里能找到钻石？我已经在 y=-58 挖了半个小时了";
+    private static final String ANSWER = "钻石在 y=-58 附近最常见，建议用分支挖矿：主通道每隔两格开一条支路，"
+        + "带上时运镐可以多掉落。注意岩浆，随身带一桶水。";
+
+    static {
+        // 恢复完成时的 info 日志会淹没基准输出
+        LOGGER.setLevel(java.util.logging.Level.WARNING);
+    }
+
+    @State(Scope.Thread)
+    public static class AppendState {
+        @Param({"false", "true"})
+        public boolean fsync;
+
+        File directory;
+        HistoryLog log;
+        int next;
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            directory = Files.createTempDirectory("history-bench").toFile();
+            log = new HistoryLog(LOGGER, message -> { }, directory, 10, 4194304, 4, fsync);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            log.close();
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RecoveryState {
+        @Param({"true", "false"})
+        public boolean withIndex;
+
+        File directory;
+        byte[] index;
+        HistoryLog log;
+
+        /**
+         * 先写出一个有 PLAYERS 名玩家、每人 20 轮问答的日志并保存索引
+         */
+        @Setup(Level.Trial)
+        public void populate() throws IOException {
+            directory = Files.createTempDirectory("history-bench").toFile();
+            HistoryLog writer = new HistoryLog(LOGGER, message -> { }, directory, 10, 4194304, 4, false);
+            for (int round = 0; round < 20; round++) {
+                for (int player = 0; player < PLAYERS; player++) {
+                    writer.appendExchange("player-" + player, QUESTION, ANSWER);
+                }
+            }
+            writer.close();
+            index = Files.readAllBytes(new File(directory, "index.dat").toPath());
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() throws IOException {
+            File file = new File(directory, "index.dat");
+            if (withIndex) {
+                Files.write(file.toPath(), index);
+            } else {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            log.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            HistoryLogBenchmark.delete(directory);
+        }
+    }
+
+    /**
+     * 追加一批问答并等待写入，报告的是单条记录的平均耗时
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void append(AppendState state) {
+        for (int i = 0; i < BATCH; i++) {
+            state.log.appendExchange("player-" + (state.next++ % PLAYERS), QUESTION, ANSWER);
+        }
+        state.log.flush();
+    }
+
+    /**
+     * 打开日志并等待恢复完成，读取不存在的玩家只是为了等恢复任务执行完
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ChatHistory recover(RecoveryState state) {
+        state.log = new HistoryLog(LOGGER, message -> { }, state.directory, 10, 4194304, 4, false);
+        return state.log.load("missing");
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(HistoryLogBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,228 @@
+package cn.ningmo.geminicraftchat.history;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryLogTest {
+    private static final Logger LOGGER = Logger.getLogger(HistoryLogTest.class.getName());
+
+    @TempDir
+    File directory;
+
+    private HistoryLog log;
+
+    @AfterEach
+    void closeLog() {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private HistoryLog open(int maxExchanges, long segmentSize, int compactSegments) {
+        if (log != null) {
+            log.close();
+        }
+        log = new HistoryLog(LOGGER, message -> { }, directory, maxExchanges, segmentSize, compactSegments, false);
+        return log;
+    }
+
+    private HistoryLog open() {
+        return open(5, 64 * 1024, 4);
+    }
+
+    private File segment(int id) {
+        return new File(directory, String.format("segment-%08d.log", id));
+    }
+
+    private File index() {
+        return new File(directory, "index.dat");
+    }
+
+    /**
+     * 读取玩家的历史并按顺序返回每条消息的内容，摘要放在最前面并加上 "摘要:" 前缀
+     */
+    private static List<String> contents(ChatHistory history) {
+        List<String> contents = new ArrayList<>();
+        ChatHistory.Snapshot snapshot = history.read();
+        if (snapshot.getSummary() != null) {
+            contents.add("摘要:" + snapshot.getSummary().getContent());
+        }
+        for (Turn turn : snapshot.getTurns()) {
+            contents.add(turn.getContent());
+        }
+        return contents;
+    }
+
+    @Test
+    void truncatesTornTail() throws IOException {
+        open();
+        log.appendExchange("p1", "q1", "a1");
+        log.appendExchange("p1", "q2", "a2");
+        log.close();
+        long size = segment(1).length();
+
+        // 模拟写入记录头和一半内容时崩溃
+        try (OutputStream out = new FileOutputStream(segment(1), true)) {
+            out.write(ByteBuffer.allocate(13).putInt(100).putInt(12345).put(new byte[] {1, 0, 0, 0, 2}).array());
+        }
+        assertTrue(segment(1).length() > size);
+        Files.delete(index().toPath());
+
+        open();
+        assertEquals(Arrays.asList("q1", "a1", "q2", "a2"), contents(log.load("p1")));
+        assertEquals(size, segment(1).length());
+
+        // 截断后的追加接在最后一条完整记录之后
+        log.appendExchange("p1", "q3", "a3");
+        open();
+        assertEquals(Arrays.asList("q1", "a1", "q2", "a2", "q3", "a3"), contents(log.load("p1")));
+    }
+
+    @Test
+    void truncatesTornTailAfterIndex() throws IOException {
+        open();
+        log.appendExchange("p1", "q1", "a1");
+        log.close();
+        long size = segment(1).length();
+        try (OutputStream out = new FileOutputStream(segment(1), true)) {
+            out.write(new byte[] {0, 0, 0});
+        }
+
+        open();
+        assertEquals(Arrays.asList("q1", "a1"), contents(log.load("p1")));
+        assertEquals(size, segment(1).length());
+    }
+
+    @Test
+    void resumesFromStaleIndex() throws IOException {
+        open();
+        log.appendExchange("p1", "q1", "a1");
+        log.appendExchange("p3", "q1", "a1");
+        log.close();
+        byte[] staleIndex = Files.readAllBytes(index().toPath());
+
+        open();
+        log.appendExchange("p1", "q2", "a2");
+        log.appendExchange("p2", "q1", "a1");
+        log.appendClear("p3");
+        log.close();
+        // 模拟保存索引前崩溃，索引停留在上一次关闭时
+        Files.write(index().toPath(), staleIndex);
+
+        open();
+        assertEquals(Arrays.asList("q1", "a1", "q2", "a2"), contents(log.load("p1")));
+        assertEquals(Arrays.asList("q1", "a1"), contents(log.load("p2")));
+        assertNull(log.load("p3"));
+    }
+
+    @Test
+    void replaysClearAndClearAll() throws IOException {
+        open();
+        log.appendExchange("p1", "q1", "a1");
+        log.appendExchange("p2", "q1", "a1");
+        log.appendExchange("p3", "q1", "a1");
+        log.appendClear("p1");
+        log.appendExchange("p2", "q2", "a2");
+        log.appendClearAll();
+        log.appendExchange("p2", "q3", "a3");
+        log.appendExchange("p4", "q1", "a1");
+        log.close();
+
+        // 有索引和重新扫描全部日志的结果相同
+        open();
+        assertCleared();
+        log.close();
+        Files.delete(index().toPath());
+        open();
+        assertCleared();
+    }
+
+    private void assertCleared() {
+        assertNull(log.load("p1"));
+        assertNull(log.load("p3"));
+        assertEquals(Arrays.asList("q3", "a3"), contents(log.load("p2")));
+        assertEquals(Arrays.asList("q1", "a1"), contents(log.load("p4")));
+    }
+
+    @Test
+    void survivesCrashBeforeOldSegmentsAreDeleted() throws IOException {
+        int players = 4;
+        int rounds = 40;
+        open(3, 512, 2);
+        // 每次写入后保存段文件内容，压缩删除的段保留删除前的最后状态
+        Map<String, byte[]> snapshots = new HashMap<>();
+        // 问答轮数少于上限的玩家，旧记录和副本被重复计入时会多出一轮
+        log.appendExchange("once", "只问一次", "只答一次");
+        for (int round = 0; round < rounds; round++) {
+            for (int player = 0; player < players; player++) {
+                log.appendExchange("p" + player, "问题 " + round + " 来自 p" + player, "回答 " + round);
+                if (player == 0 && round == rounds / 2) {
+                    log.appendSummary("p0", "摘要 p0", 1);
+                }
+                log.flush();
+                for (File file : segmentFiles()) {
+                    snapshots.put(file.getName(), Files.readAllBytes(file.toPath()));
+                }
+            }
+        }
+        log.close();
+
+        List<String> deleted = new ArrayList<>();
+        for (Map.Entry<String, byte[]> snapshot : snapshots.entrySet()) {
+            File file = new File(directory, snapshot.getKey());
+            if (!file.exists()) {
+                Files.write(file.toPath(), snapshot.getValue());
+                deleted.add(snapshot.getKey());
+            }
+        }
+        assertFalse(deleted.isEmpty());
+
+        // 压缩后保存的索引与旧段同时存在
+        open(3, 512, 2);
+        assertCompacted(players, rounds);
+        log.close();
+        // 没有索引时从最早的旧段开始重新扫描，旧记录被压缩写入的清空记录抵消
+        Files.delete(index().toPath());
+        open(3, 512, 2);
+        assertCompacted(players, rounds);
+    }
+
+    private void assertCompacted(int players, int rounds) {
+        assertEquals(Arrays.asList("只问一次", "只答一次"), contents(log.load("once")));
+        for (int player = 0; player < players; player++) {
+            List<String> expected = new ArrayList<>();
+            if (player == 0) {
+                expected.add("摘要:摘要 p0");
+            }
+            for (int round = rounds - 3; round < rounds; round++) {
+                expected.add("问题 " + round + " 来自 p" + player);
+                expected.add("回答 " + round);
+            }
+            assertEquals(expected, contents(log.load("p" + player)));
+        }
+    }
+
+    private File[] segmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        return files != null ? files : new File[0];
+    }
+}